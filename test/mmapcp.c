@@ -0,0 +1,63 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BUFSIZE 1024
+
+/* well above the program, its stack, and its arguments */
+#define MAPADDR ((char *) 0x100000)
+
+char buf[BUFSIZE];
+
+int main(int argc, char **argv)
+{
+  int src, dst, length, amount, done;
+
+  if (argc != 3)
+  {
+    printf("Usage: mmapcp <src> <dst>\n");
+    return 1;
+  }
+
+  src = open(argv[1]);
+  if (src == -1)
+  {
+    printf("Unable to open %s\n", argv[1]);
+    return 1;
+  }
+
+  creat(argv[2]);
+  dst = open(argv[2]);
+  if (dst == -1)
+  {
+    printf("Unable to create %s\n", argv[2]);
+    return 1;
+  }
+
+  length = mmap(src, MAPADDR);
+  if (length == -1)
+  {
+    /* no mmap() without virtual memory; copy through a buffer instead */
+    while ((amount = read(src, buf, BUFSIZE)) > 0)
+    {
+      write(dst, buf, amount);
+    }
+  }
+  else
+  {
+    for (done = 0; done < length; done += amount)
+    {
+      amount = write(dst, MAPADDR + done, length - done);
+      if (amount <= 0)
+      {
+        printf("Unable to write %s\n", argv[2]);
+        return 1;
+      }
+    }
+  }
+
+  close(src);
+  close(dst);
+
+  return 0;
+}
@@ -2,13 +2,9 @@
 #include "stdio.h"
 #include "stdlib.h"
 
-#define BUFSIZE 1024
-
-char buf[BUFSIZE];
-
 int main(int argc, char **argv)
 {
-  int src, dst, amount;
+  int src, dst;
 
   if (argc != 3)
   {
@@ -31,9 +27,10 @@ int main(int argc, char **argv)
     return 1;
   }
 
-  while ((amount = read(src, buf, BUFSIZE)) > 0)
+  if (fcopy(dst, src) == -1)
   {
-    write(dst, buf, amount);
+    printf("Unable to copy %s\n", argv[1]);
+    return 1;
   }
 
   close(src);
@@ -0,0 +1,81 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BUFSIZE 1024
+
+char buf[BUFSIZE];
+
+int main(int argc, char **argv)
+{
+  int src, dst, amount, pid, status;
+  int fds[2];
+
+  if (argc != 3)
+  {
+    printf("Usage: pipecp <src> <dst>\n");
+    return 1;
+  }
+
+  if (pipe(fds) == -1)
+  {
+    printf("Unable to create a pipe\n");
+    return 1;
+  }
+
+  pid = fork();
+  if (pid == -1)
+  {
+    printf("Unable to fork\n");
+    return 1;
+  }
+
+  if (pid == 0)
+  {
+    /* the child copies the pipe to the destination */
+    close(fds[1]);
+
+    creat(argv[2]);
+    dst = open(argv[2]);
+    if (dst == -1)
+    {
+      printf("Unable to create %s\n", argv[2]);
+      return 1;
+    }
+
+    while ((amount = read(fds[0], buf, BUFSIZE)) > 0)
+    {
+      write(dst, buf, amount);
+    }
+
+    close(dst);
+    return 0;
+  }
+
+  /* the parent copies the source into the pipe */
+  close(fds[0]);
+
+  src = open(argv[1]);
+  if (src == -1)
+  {
+    printf("Unable to open %s\n", argv[1]);
+    close(fds[1]);
+    join(pid, &status);
+    return 1;
+  }
+
+  while ((amount = read(src, buf, BUFSIZE)) > 0)
+  {
+    if (write(fds[1], buf, amount) != amount)
+    {
+      printf("Unable to write to the pipe\n");
+      break;
+    }
+  }
+
+  close(src);
+  close(fds[1]);
+
+  join(pid, &status);
+  return status;
+}
@@ -0,0 +1,89 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BUFSIZE 1024
+#define ENTRIES 8
+
+char buf[ENTRIES][BUFSIZE];
+
+struct {
+  struct ring_header header;
+  struct ring_request sq[ENTRIES];
+  struct ring_completion cq[ENTRIES];
+} ring;
+
+static void submit(int opcode, int fd, char *buffer, int length, int user_data)
+{
+  struct ring_request *request = &ring.sq[ring.header.sq_tail % ENTRIES];
+
+  request->opcode = opcode;
+  request->fd = fd;
+  request->buffer = buffer;
+  request->length = length;
+  request->user_data = user_data;
+
+  ring.header.sq_tail++;
+}
+
+/* copies ENTRIES buffers per pair of syscalls: one ring_enter() reads them
+ * all, and the next writes them all */
+int main(int argc, char **argv)
+{
+  int src, dst, i, count, amounts[ENTRIES];
+  struct ring_completion *completion;
+
+  if (argc != 3)
+  {
+    printf("Usage: ringcp <src> <dst>\n");
+    return 1;
+  }
+
+  src = open(argv[1]);
+  if (src == -1)
+  {
+    printf("Unable to open %s\n", argv[1]);
+    return 1;
+  }
+
+  creat(argv[2]);
+  dst = open(argv[2]);
+  if (dst == -1)
+  {
+    printf("Unable to create %s\n", argv[2]);
+    return 1;
+  }
+
+  if (ring_setup(&ring, ENTRIES) == -1)
+  {
+    printf("Unable to set up the ring\n");
+    return 1;
+  }
+
+  do
+  {
+    for (i = 0; i < ENTRIES; i++)
+      submit(RING_READ, src, buf[i], BUFSIZE, i);
+    ring_enter(ENTRIES);
+
+    /* reads complete in order, so stop at the first short one */
+    count = 0;
+    for (i = 0; i < ENTRIES; i++)
+    {
+      completion = &ring.cq[ring.header.cq_head++ % ENTRIES];
+      amounts[completion->user_data] = completion->result;
+      if (count == i && completion->result > 0)
+        count++;
+    }
+
+    for (i = 0; i < count; i++)
+      submit(RING_WRITE, dst, buf[i], amounts[i], i);
+    ring_enter(count);
+    ring.header.cq_head += count;
+  } while (count == ENTRIES && amounts[ENTRIES - 1] == BUFSIZE);
+
+  close(src);
+  close(dst);
+
+  return 0;
+}
@@ -0,0 +1,49 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define KEY 1234
+#define NUMCHILDREN 4
+#define COUNT 1000
+
+/* well above the program, its stack, and its arguments */
+#define SHMADDR ((char *) 0x100000)
+
+/* each child counts into its own slot, and the parent adds them up */
+int main(int argc, char **argv)
+{
+  int id, i, j, status, total;
+  int pids[NUMCHILDREN];
+  int *counts = (int *) SHMADDR;
+
+  id = shmget(KEY, NUMCHILDREN * sizeof(int));
+  if (id == -1 || shmat(id, SHMADDR) != SHMADDR)
+  {
+    printf("Unable to attach shared memory\n");
+    return 1;
+  }
+
+  for (i = 0; i < NUMCHILDREN; i++)
+  {
+    pids[i] = fork();
+    if (pids[i] == 0)
+    {
+      for (j = 0; j < COUNT; j++)
+        counts[i]++;
+      return 0;
+    }
+  }
+
+  total = 0;
+  for (i = 0; i < NUMCHILDREN; i++)
+  {
+    if (pids[i] != -1)
+      join(pids[i], &status);
+    total += counts[i];
+  }
+
+  printf("%d\n", total);
+  shmdt(SHMADDR);
+
+  return (total == NUMCHILDREN * COUNT) ? 0 : 1;
+}
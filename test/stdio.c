@@ -20,3 +20,26 @@ void fputs(const char *s, int fd)
 {
     write(fd, (char *)s, strlen(s));
 }
+
+/* Copy the rest of src to dst, in the kernel with sendfile() if it can, and
+ * through a buffer otherwise. Returns the number of bytes copied, or -1. */
+int fcopy(int dst, int src)
+{
+    static char buf[1024];
+    int amount, total = 0;
+
+    while ((amount = sendfile(dst, src, 0x7FFFFFFF)) > 0)
+        total += amount;
+
+    if (amount == -1)
+    {
+        while ((amount = read(src, buf, sizeof(buf))) > 0)
+        {
+            if (write(dst, buf, amount) != amount)
+                return -1;
+            total += amount;
+        }
+    }
+
+    return (amount == -1) ? -1 : total;
+}
@@ -24,6 +24,7 @@ int  tryreadline(char *s, char c, int maxlength);
 
 void fputc(char c, FILE stream);
 void fputs(const char *s, FILE stream);
+int  fcopy(FILE dst, FILE src);
 
 #define puts(s)		fputs(s,stdout)
 #define putc(c,stream)	fputc(c,stream)
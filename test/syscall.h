@@ -25,6 +25,18 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
+#define syscallFork		15
+#define syscallPipe		16
+#define syscallShmget		17
+#define syscallShmat		18
+#define syscallShmdt		19
+#define syscallRingSetup	20
+#define syscallRingEnter	21
+#define syscallReadv		22
+#define syscallWritev		23
+#define syscallSendfile		24
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +65,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -109,6 +121,21 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a new child process that is a copy of the current process. The child
+ * starts running at the return from fork(), with the same memory contents and
+ * registers as the parent. Memory is copied lazily: a page is only copied when
+ * the parent or the child first writes to it.
+ *
+ * The child shares the parent's open file descriptors, including their file
+ * positions. A file stays open until both processes have closed it.
+ *
+ * fork() returns the child's process ID, which can be passed to join(), in
+ * the parent, and 0 in the child. On error, returns -1 and no child is
+ * created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -214,9 +241,53 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/* A buffer for readv() and writev(). */
+struct iovec {
+  char *iov_base;
+  int iov_len;
+};
+
+/**
+ * Like read(), but fills the iovcnt buffers described by iov, at most 16, in
+ * order, each before the next. Every buffer is checked before anything is
+ * read, and the data for several buffers is read from the file in one
+ * operation.
+ *
+ * Returns the number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but writes the iovcnt buffers described by iov, at most 16, in
+ * order, as if they were one buffer. Every buffer is checked before anything
+ * is written, and the data of several buffers is written to the file in one
+ * operation.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Copy up to count bytes from inFd to outFd, inside the kernel, starting at
+ * the current position of each. The data does not pass through the calling
+ * process's memory.
+ *
+ * Returns the number of bytes copied, which is less than count only at the
+ * end of the input or after a short read from a stream such as a pipe, so 0
+ * means the end of the input. Returns -1 if an error occurred before anything
+ * was copied.
+ */
+int sendfile(int outFd, int inFd, int count);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
+ *
+ * address must be page-aligned, and the map must not overlap the program or
+ * another map. Pages are read from the file when first touched. The last page
+ * of the map is filled with zeros beyond the end of the file, and that part is
+ * never written back, so a map does not change the length of the file. Maps
+ * are not inherited by fork().
  * 
  * To maintain consistency, further calls to read() and write() on this file
  * descriptor will fail (returning -1) until the file descriptor is closed.
@@ -228,6 +299,126 @@ int unlink(char *name);
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Create a pipe, a buffer in the kernel that bytes written at one end can be
+ * read from at the other, in the same order. fds[0] is set to a new file
+ * descriptor for the read end, and fds[1] to one for the write end. The ends
+ * are shared with processes created by fork() afterwards, so a pipe created
+ * before fork() connects the parent and the child.
+ *
+ * read() on the read end returns as soon as any bytes are available, and
+ * blocks while the pipe is empty; once every write end has been closed and
+ * the pipe is empty, it returns 0. write() on the write end blocks until all
+ * the bytes have been taken, and returns -1 once every read end has been
+ * closed. A pipe cannot be mmap()ed.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/* SHARED MEMORY SYSCALLS: shmget, shmat, shmdt
+ *
+ * A shared memory segment is a set of pages that several processes can map at
+ * once; a store by one process is seen immediately by the others. Segments
+ * need virtual memory, so these calls always fail without it. Combine them
+ * with futexes to synchronize the processes.
+ */
+
+/**
+ * Find the shared memory segment identified by key, creating it if there is
+ * none. A new segment is size bytes long, rounded up to a page, and filled
+ * with zeros. An existing segment must be at least size bytes long.
+ *
+ * The segment remains until it has been attached and every attachment has
+ * been removed by shmdt(), or by the exit of the process that made it.
+ *
+ * Returns the ID of the segment, to be passed to shmat(), or -1 if an error
+ * occurred.
+ */
+int shmget(int key, int size);
+
+/**
+ * Map the shared memory segment with the given ID into memory at address.
+ * address must be page-aligned, and the map must not overlap the program, a
+ * file map, or another segment. Processes created by fork() inherit the
+ * mappings of their parent.
+ *
+ * Returns address, or (char *) -1 if an error occurred.
+ */
+char *shmat(int id, char *address);
+
+/**
+ * Remove the mapping of a shared memory segment at address, which must be an
+ * address returned by shmat().
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int shmdt(char *address);
+
+/* BATCHED SYSCALLS: ring_setup, ring_enter
+ *
+ * A process can queue read(), write(), open() and close() requests in a
+ * submission ring in its own memory, and have the kernel carry out many of
+ * them with one ring_enter() syscall. The result of each request, the value
+ * the matching syscall would have returned, is put in a completion ring.
+ *
+ * The rings follow a header in memory, each with the same number of entries:
+ *
+ *	struct {
+ *	  struct ring_header header;
+ *	  struct ring_request sq[ENTRIES];
+ *	  struct ring_completion cq[ENTRIES];
+ *	} ring;
+ *
+ * The heads and tails count entries from zero and are never wrapped; entry i
+ * of a ring is in slot i % ENTRIES. To submit a request, fill in
+ * sq[sq_tail % ENTRIES] and then increment sq_tail. Completions from cq_head
+ * up to cq_tail are ready; increment cq_head after using one. The kernel
+ * only changes sq_head and cq_tail.
+ */
+
+#define RING_READ	0	/* read(fd, buffer, length) */
+#define RING_WRITE	1	/* write(fd, buffer, length) */
+#define RING_OPEN	2	/* open(buffer) */
+#define RING_CLOSE	3	/* close(fd) */
+
+struct ring_header {
+  int sq_head, sq_tail;
+  int cq_head, cq_tail;
+};
+
+struct ring_request {
+  int opcode;
+  int fd;
+  char *buffer;
+  int length;
+  int user_data;	/* copied to the completion */
+};
+
+struct ring_completion {
+  int user_data;
+  int result;
+};
+
+/**
+ * Register the rings whose header is at ring, with entries entries each, a
+ * power of two no greater than 256. The header is cleared. The rings replace
+ * any registered before, and are inherited by fork().
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int ring_setup(void *ring, int entries);
+
+/**
+ * Carry out requests from the submission ring, in order, until count have
+ * been carried out, the submission ring is empty, or the completion ring is
+ * full. A request that blocks delays the ones after it.
+ *
+ * Returns the number of requests carried out, or -1 if no rings are
+ * registered.
+ */
+int ring_enter(int count);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -257,6 +448,34 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* USER-LEVEL SYNCHRONIZATION SYSCALLS: futex_wait, futex_wake
+ *
+ * A futex is an aligned int in user memory. User code keeps the state of a
+ * lock or semaphore in the futex word and only calls into the kernel to sleep
+ * when it has to wait, or to wake sleepers after changing the word. Futexes
+ * are identified by physical address, so processes sharing memory can also
+ * share futexes.
+ */
+
+/**
+ * If the int at addr still holds expected, sleep until another thread calls
+ * futex_wake() on the same futex. The check and the sleep are atomic with
+ * respect to futex_wake(), so a wakeup sent after the word was changed cannot
+ * be missed.
+ *
+ * Returns 0 after being woken, or -1 if the word did not hold expected (the
+ * caller should re-read it and retry) or if addr is unaligned or invalid.
+ */
+int futex_wait(int *addr, int expected);
+
+/**
+ * Wake up to count threads sleeping in futex_wait() on the int at addr, in the
+ * order they went to sleep.
+ *
+ * Returns the number of threads woken, or -1 if addr is unaligned or invalid.
+ */
+int futex_wake(int *addr, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
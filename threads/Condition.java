@@ -80,11 +80,19 @@ public class Condition {
     public void sleep() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+        long sleepStart = 0;
+        if (LockProfiler.enabled && profile != null)
+            sleepStart = LockProfiler.now();
+
         Semaphore waiter = new Semaphore(0);
         waitQueue.add(waiter);
 
         conditionLock.release();
         waiter.P();
+
+        if (LockProfiler.enabled && profile != null)
+            profile.slept(sleepStart, LockProfiler.now());
+
         conditionLock.acquire();
     }
 
@@ -112,4 +120,6 @@ public class Condition {
 
     private Lock conditionLock;
     private LinkedList<Semaphore> waitQueue;
+
+    private LockProfiler.Site profile = LockProfiler.enabled ? LockProfiler.register("Condition") : null;
 }
@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 
 /**
@@ -9,14 +10,21 @@ import java.util.LinkedList;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Sleeping threads wait in a <tt>ThreadQueue</tt> provided by the scheduler, so
+ * the order in which they are woken follows the scheduling policy.
+ *
+ * <p>
+ * A thread woken by <tt>wake()</tt> is put on the ready list and reacquires the
+ * lock itself, which is free by the time it runs unless some other thread took
+ * it in the meantime. Threads woken by <tt>wakeAll()</tt> are instead moved
+ * directly onto the wait queue of the associated lock, and are made ready one at
+ * a time as <tt>Lock.release()</tt> hands the lock to each of them. A
+ * <tt>wakeAll()</tt> thus costs one context switch per waiter, instead of a
+ * burst of threads that each run only to block again on the lock.
  *
  * @see nachos.threads.Condition
  */
 public class Condition2 {
-
-    LinkedList<KThread> threadQueue;
-
     /**
      * Allocate a new condition variable.
      *
@@ -27,7 +35,6 @@ public class Condition2 {
      */
     public Condition2(Lock conditionLock) {
         this.conditionLock = conditionLock;
-        this.threadQueue = new LinkedList<KThread>();
     }
 
     /**
@@ -39,15 +46,34 @@ public class Condition2 {
     public void sleep() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        conditionLock.release();
+        long sleepStart = 0;
+        if (LockProfiler.enabled && profile != null)
+            sleepStart = LockProfiler.now();
+
         boolean intStatus = Machine.interrupt().disable();
 
-        threadQueue.add(KThread.currentThread());
+        numWaiters++;
+        waitQueue.waitForAccess(KThread.currentThread());
+        conditionLock.release();
         KThread.sleep();
 
         Machine.interrupt().restore(intStatus);
 
-        conditionLock.acquire();
+        // unless the lock was handed to us by wakeAll(), take it back
+        if (!conditionLock.isHeldByCurrentThread()) {
+            if (LockProfiler.enabled && profile != null)
+                profile.slept(sleepStart, LockProfiler.now());
+
+            conditionLock.acquire();
+        }
+        else if (LockProfiler.enabled) {
+            // the sleep ended at wakeAll(); the wait for the lock since then
+            long wokenAt = wokenByWakeAll.remove(KThread.currentThread());
+            if (profile != null)
+                profile.slept(sleepStart, wokenAt);
+
+            conditionLock.handedOver(wokenAt);
+        }
     }
 
     /**
@@ -56,12 +82,16 @@ public class Condition2 {
      */
     public void wake() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-        if (threadQueue.isEmpty()) {
+
+        // sleepers only come and go while the lock is held, so this is stable
+        if (numWaiters == 0)
             return;
-        }
+
         boolean intStatus = Machine.interrupt().disable();
 
-        threadQueue.remove().ready();
+        KThread thread = waitQueue.nextThread();
+        numWaiters--;
+        thread.ready();
 
         Machine.interrupt().restore(intStatus);
     }
@@ -73,11 +103,181 @@ public class Condition2 {
     public void wakeAll() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        while (threadQueue.peek() == null) {
-            wake();
+        if (numWaiters == 0)
+            return;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        long now = LockProfiler.enabled ? LockProfiler.now() : 0;
+        for (KThread thread = waitQueue.nextThread(); thread != null; thread = waitQueue.nextThread()) {
+            conditionLock.enqueueWaiter(thread);
+
+            if (LockProfiler.enabled)
+                wokenByWakeAll.put(thread, now);
+        }
+        numWaiters = 0;
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A one-slot-at-a-time queue, like <tt>SynchList</tt>, that can use either
+     * kind of condition variable.
+     */
+    private static class PingList {
+        PingList(boolean useCondition2) {
+            if (useCondition2)
+                listEmpty2 = new Condition2(lock);
+            else
+                listEmpty = new Condition(lock);
+        }
+
+        void add(Object o) {
+            lock.acquire();
+            list.add(o);
+            if (listEmpty2 != null)
+                listEmpty2.wake();
+            else
+                listEmpty.wake();
+            lock.release();
+        }
+
+        Object removeFirst() {
+            lock.acquire();
+            while (list.isEmpty()) {
+                if (listEmpty2 != null)
+                    listEmpty2.sleep();
+                else
+                    listEmpty.sleep();
+            }
+            Object o = list.removeFirst();
+            lock.release();
+
+            return o;
+        }
+
+        private LinkedList<Object> list = new LinkedList<Object>();
+        private Lock lock = new Lock();
+        private Condition listEmpty = null;
+        private Condition2 listEmpty2 = null;
+    }
+
+    private static class PingTest implements Runnable {
+        PingTest(PingList ping, PingList pong, int numPings) {
+            this.ping = ping;
+            this.pong = pong;
+            this.numPings = numPings;
         }
+
+        public void run() {
+            for (int i = 0; i < numPings; i++)
+                pong.add(ping.removeFirst());
+        }
+
+        private PingList ping;
+        private PingList pong;
+        private int numPings;
+    }
+
+    /**
+     * Run the <tt>SynchList</tt> ping-pong test with the specified kind of
+     * condition variable.
+     *
+     * @param numPings the number of items to pass back and forth.
+     * @return the number of ticks the test took.
+     */
+    private static long pingPong(boolean useCondition2, int numPings) {
+        PingList ping = new PingList(useCondition2);
+        PingList pong = new PingList(useCondition2);
+
+        long start = Machine.timer().getTime();
+
+        KThread thread = new KThread(new PingTest(ping, pong, numPings)).setName("ping");
+        thread.fork();
+
+        for (int i = 0; i < numPings; i++) {
+            Integer o = new Integer(i);
+            ping.add(o);
+            Lib.assertTrue(pong.removeFirst() == o);
+        }
+
+        thread.join();
+
+        return Machine.timer().getTime() - start;
+    }
+
+    private static class WakeAllTest implements Runnable {
+        WakeAllTest(Lock lock, Condition2 cond, int[] counters) {
+            this.lock = lock;
+            this.cond = cond;
+            this.counters = counters;
+        }
+
+        public void run() {
+            lock.acquire();
+            counters[0]++;
+            while (counters[1] == 0)
+                cond.sleep();
+            counters[2]++;
+            lock.release();
+        }
+
+        private Lock lock;
+        private Condition2 cond;
+        private int[] counters;
+    }
+
+    /**
+     * Test that this module is working. If the <tt>nachos.conf</tt> key
+     * <tt>Condition2.pingPongs</tt> is set to a positive number, also compare
+     * its cost with <tt>Condition</tt> on the <tt>SynchList</tt> ping-pong test,
+     * passing that many items.
+     */
+    public static void selfTest() {
+        int numThreads = 5;
+
+        // counters: sleepers started, go flag, sleepers finished
+        Lock lock = new Lock();
+        Condition2 cond = new Condition2(lock);
+        int[] counters = new int[3];
+
+        KThread[] threads = new KThread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new KThread(new WakeAllTest(lock, cond, counters)).setName("sleeper " + i);
+            threads[i].fork();
+        }
+
+        lock.acquire();
+        while (counters[0] < numThreads) {
+            lock.release();
+            KThread.yield();
+            lock.acquire();
+        }
+        counters[1] = 1;
+        cond.wakeAll();
+        lock.release();
+
+        for (int i = 0; i < numThreads; i++)
+            threads[i].join();
+
+        Lib.assertTrue(counters[2] == numThreads);
+
+        int numPings = Config.getInteger("Condition2.pingPongs", 0);
+        if (numPings <= 0)
+            return;
+
+        long ticks = pingPong(false, numPings);
+        long ticks2 = pingPong(true, numPings);
+
+        System.out.println("ping-pong x" + numPings + ": Condition " + ticks + " ticks, Condition2 " + ticks2
+                + " ticks");
     }
 
     private Lock conditionLock;
+    private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+    private int numWaiters = 0;
 
+    private LockProfiler.Site profile = LockProfiler.enabled ? LockProfiler.register("Condition2") : null;
+    /** When profiling, the time each thread moved to the lock by <tt>wakeAll()</tt> was woken. */
+    private HashMap<KThread, Long> wokenByWakeAll = LockProfiler.enabled ? new HashMap<KThread, Long>() : null;
 }
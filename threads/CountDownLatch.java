@@ -0,0 +1,79 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>CountDownLatch</tt> is a synchronization primitive that lets any number
+ * of threads wait until a fixed number of events have happened. It has two
+ * operations:
+ *
+ * <ul>
+ * <li><tt>await()</tt>: wait until the count reaches zero.
+ * <li><tt>countDown()</tt>: decrement the count, waking up every thread waiting
+ * in <tt>await()</tt> when it reaches zero.
+ * </ul>
+ *
+ * <p>
+ * Unlike a <tt>Semaphore</tt>, all waiters are released together when the count
+ * reaches zero, by draining the wait queue once. A latch cannot be reset; once
+ * the count is zero, <tt>await()</tt> returns immediately.
+ *
+ * <p>
+ * A latch is a cheap way to wait for many threads to finish: each thread calls
+ * <tt>countDown()</tt> as its last action, and the parent calls
+ * <tt>await()</tt> once, instead of calling <tt>join()</tt> on every child.
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new latch.
+     *
+     * @param count the number of times <tt>countDown()</tt> must be called before
+     *              waiting threads are released. Must not be negative.
+     */
+    public CountDownLatch(int count) {
+        Lib.assertTrue(count >= 0);
+
+        this.count = count;
+    }
+
+    /**
+     * Wait until the count of this latch reaches zero. Returns immediately if it
+     * already has.
+     */
+    public void await() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (count > 0) {
+            waitQueue.waitForAccess(KThread.currentThread());
+            KThread.sleep();
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically decrement the count of this latch. If the count reaches zero,
+     * every waiting thread is woken. Has no effect if the count is already zero.
+     */
+    public void countDown() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (count > 0 && --count == 0)
+            waitQueue.wakeAll();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the current count of this latch. As with semaphores, the value may
+     * change as soon as it is read, so this is only useful for debugging.
+     *
+     * @return the current count.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    private int count;
+    private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -0,0 +1,130 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>CyclicBarrier</tt> makes a fixed number of threads, called
+ * <i>parties</i>, wait for each other. Each party calls <tt>await()</tt>; the
+ * first <tt>parties - 1</tt> callers block, and the last caller wakes all of
+ * them at once and returns immediately.
+ *
+ * <p>
+ * Once every party has been released, the barrier resets itself and may be used
+ * again, so a group of threads can use the same barrier to step through several
+ * phases of a computation together.
+ *
+ * <p>
+ * The waiting parties are kept in a single scheduler <tt>ThreadQueue</tt>, which
+ * is drained in one pass when the barrier trips. Releasing <i>n</i> threads
+ * therefore costs <i>n</i> wakeups, not <i>n</i> separate semaphore operations.
+ */
+public class CyclicBarrier {
+    /**
+     * Allocate a new barrier.
+     *
+     * @param parties the number of threads that must call <tt>await()</tt> before
+     *                any of them are released. Must be positive.
+     */
+    public CyclicBarrier(int parties) {
+        Lib.assertTrue(parties > 0);
+
+        this.parties = parties;
+    }
+
+    /**
+     * Wait until all parties have called <tt>await()</tt> on this barrier.
+     *
+     * @return the arrival index of the current thread: <tt>parties - 1</tt> for
+     *         the first thread to arrive, and <tt>0</tt> for the last.
+     */
+    public int await() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        int index = parties - 1 - arrived;
+
+        if (++arrived == parties) {
+            arrived = 0;
+            generation++;
+            waitQueue.wakeAll();
+        } else {
+            waitQueue.waitForAccess(KThread.currentThread());
+            KThread.sleep();
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return index;
+    }
+
+    /**
+     * Return the number of parties required to trip this barrier.
+     *
+     * @return the number of parties.
+     */
+    public int getParties() {
+        return parties;
+    }
+
+    /**
+     * Return the number of times this barrier has tripped.
+     *
+     * @return the number of completed generations.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    private static class PhaseTest implements Runnable {
+        PhaseTest(CyclicBarrier barrier, CountDownLatch done, int[] phases, int which) {
+            this.barrier = barrier;
+            this.done = done;
+            this.phases = phases;
+            this.which = which;
+        }
+
+        public void run() {
+            for (int i = 0; i < numPhases; i++) {
+                phases[which] = i;
+                barrier.await();
+
+                // nobody may leave a phase before everyone has entered it
+                for (int j = 0; j < phases.length; j++)
+                    Lib.assertTrue(phases[j] >= i);
+
+                barrier.await();
+            }
+
+            done.countDown();
+        }
+
+        private CyclicBarrier barrier;
+        private CountDownLatch done;
+        private int[] phases;
+        private int which;
+    }
+
+    /**
+     * Test that this module, and <tt>CountDownLatch</tt>, are working.
+     */
+    public static void selfTest() {
+        int numThreads = 20;
+
+        CyclicBarrier barrier = new CyclicBarrier(numThreads);
+        CountDownLatch done = new CountDownLatch(numThreads);
+        int[] phases = new int[numThreads];
+
+        for (int i = 0; i < numThreads; i++)
+            new KThread(new PhaseTest(barrier, done, phases, i)).setName("barrier " + i).fork();
+
+        done.await();
+
+        Lib.assertTrue(done.getCount() == 0);
+        Lib.assertTrue(barrier.getGeneration() == 2 * numPhases);
+    }
+
+    private static final int numPhases = 3;
+
+    private int parties;
+    private int arrived = 0;
+    private int generation = 0;
+    private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+}
@@ -0,0 +1,98 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An <i>event count</i> (Reed and Kanodia) is a monotonically increasing counter
+ * that threads can wait on. It has three operations:
+ *
+ * <ul>
+ * <li><tt>read()</tt>: return the current value of the counter.
+ * <li><tt>advance()</tt>: increment the counter, waking up every thread whose
+ * awaited value has now been reached.
+ * <li><tt>await(value)</tt>: wait until the counter is at least <i>value</i>.
+ * </ul>
+ *
+ * <p>
+ * Combined with a <tt>Sequencer</tt>, which hands out tickets, an event count
+ * can be used to serve threads in ticket order without a lock.
+ *
+ * <p>
+ * Waiters are grouped by the value they are waiting for, with one scheduler
+ * <tt>ThreadQueue</tt> per distinct value. An <tt>advance()</tt> only drains the
+ * queues whose value has been reached, so threads are never woken just to find
+ * that they must go back to sleep.
+ *
+ * @see nachos.threads.Sequencer
+ */
+public class EventCount {
+    /**
+     * Allocate a new event count with value zero.
+     */
+    public EventCount() {
+    }
+
+    /**
+     * Return the current value of this event count.
+     *
+     * @return the current value.
+     */
+    public int read() {
+        return count;
+    }
+
+    /**
+     * Wait until the value of this event count is at least <i>value</i>. Returns
+     * immediately if it already is.
+     *
+     * @param value the value to wait for.
+     */
+    public void await(int value) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (count < value) {
+            ThreadQueue waitQueue = waiters.get(value);
+            if (waitQueue == null) {
+                waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+                waiters.put(value, waitQueue);
+            }
+
+            waitQueue.waitForAccess(KThread.currentThread());
+            KThread.sleep();
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically increment this event count, and wake up every thread waiting for
+     * the new value or a smaller one.
+     *
+     * @return the new value.
+     */
+    public int advance() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        count++;
+
+        while (!waiters.isEmpty()) {
+            Map.Entry<Integer, ThreadQueue> first = waiters.firstEntry();
+            if (first.getKey() > count)
+                break;
+
+            waiters.pollFirstEntry();
+            first.getValue().wakeAll();
+        }
+
+        int value = count;
+
+        Machine.interrupt().restore(intStatus);
+        return value;
+    }
+
+    private int count = 0;
+    private TreeMap<Integer, ThreadQueue> waiters = new TreeMap<Integer, ThreadQueue>();
+}
@@ -28,40 +28,122 @@ public class Lock {
     /**
      * Atomically acquire this lock. The current thread must not already hold this
      * lock.
+     *
+     * <p>
+     * If the lock is free, it is taken without disabling interrupts or touching
+     * the wait queue. This is safe because a kernel thread can only be preempted
+     * when interrupts are enabled, and nothing between the test and the set can
+     * enable them. The scheduler is only told who holds the lock once another
+     * thread has to wait for it, which is the first point at which priority
+     * donation can matter.
      */
     public void acquire() {
         Lib.assertTrue(!isHeldByCurrentThread());
 
-        boolean intStatus = Machine.interrupt().disable();
         KThread thread = KThread.currentThread();
 
-        if (lockHolder != null) {
-            waitQueue.waitForAccess(thread);
-            KThread.sleep();
-        } else {
-            waitQueue.acquire(thread);
+        if (lockHolder == null) {
             lockHolder = thread;
+
+            if (LockProfiler.enabled && profile != null) {
+                profile.acquired(false, 0);
+                heldSince = LockProfiler.now();
+            }
+            return;
         }
 
+        long waitStart = 0;
+        if (LockProfiler.enabled && profile != null)
+            waitStart = LockProfiler.now();
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        enqueueWaiter(thread);
+        KThread.sleep();
+
         Lib.assertTrue(lockHolder == thread);
 
         Machine.interrupt().restore(intStatus);
+
+        if (LockProfiler.enabled && profile != null)
+            profile.acquired(true, waitStart);
     }
 
     /**
      * Atomically release this lock, allowing other threads to acquire it.
+     *
+     * <p>
+     * If no thread is waiting, the lock is simply marked free. The wait queue may
+     * still name this thread as its owner, but an empty queue donates nothing, and
+     * the next thread to wait will first replace the owner with the real holder.
+     * Otherwise the lock is handed directly to the next waiting thread.
      */
     public void release() {
         Lib.assertTrue(isHeldByCurrentThread());
 
+        if (LockProfiler.enabled && profile != null)
+            profile.released(heldSince);
+
+        if (numWaiters == 0) {
+            lockHolder = null;
+            holderQueued = false;
+            return;
+        }
+
         boolean intStatus = Machine.interrupt().disable();
 
-        if ((lockHolder = waitQueue.nextThread()) != null)
-            lockHolder.ready();
+        lockHolder = waitQueue.nextThread();
+        Lib.assertTrue(lockHolder != null);
+        numWaiters--;
+
+        if (LockProfiler.enabled && profile != null)
+            heldSince = LockProfiler.now();
+
+        lockHolder.ready();
 
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Queue a sleeping thread for this lock. The thread stays asleep until
+     * <tt>release()</tt> hands it the lock, so when it runs again it already holds
+     * the lock. This is used by <tt>acquire()</tt> when the lock is busy, and by
+     * <tt>Condition2</tt> to move woken waiters straight onto the lock's wait
+     * queue. The lock must be held, and interrupts must be disabled.
+     *
+     * @param thread a thread that is about to sleep, or is already asleep, and is
+     *               not waiting for anything else.
+     */
+    void enqueueWaiter(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        Lib.assertTrue(lockHolder != null && lockHolder != thread);
+
+        // the holder took the lock on the fast path; let waiters donate to it
+        if (!holderQueued) {
+            Lib.assertTrue(numWaiters == 0);
+
+            waitQueue.acquire(lockHolder);
+            holderQueued = true;
+        }
+
+        numWaiters++;
+        waitQueue.waitForAccess(thread);
+    }
+
+    /**
+     * Record that the current thread was handed this lock by
+     * <tt>Condition2.wakeAll()</tt>, and so took it without calling
+     * <tt>acquire()</tt>. Only used when profiling.
+     *
+     * @param waitStart the time the thread was queued for the lock.
+     */
+    void handedOver(long waitStart) {
+        Lib.assertTrue(isHeldByCurrentThread());
+
+        if (LockProfiler.enabled && profile != null)
+            profile.acquired(true, waitStart);
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -73,4 +155,14 @@ public class Lock {
 
     private KThread lockHolder = null;
     private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+
+    /**
+     * <tt>true</tt> if <tt>waitQueue</tt> has been told about the current holder.
+     * Always <tt>true</tt> while <tt>numWaiters</tt> is non-zero.
+     */
+    private boolean holderQueued = false;
+    private int numWaiters = 0;
+
+    private LockProfiler.Site profile = LockProfiler.enabled ? LockProfiler.register("Lock") : null;
+    private long heldSince;
 }
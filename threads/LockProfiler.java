@@ -0,0 +1,200 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Collects contention statistics for <tt>Lock</tt>, <tt>Semaphore</tt>,
+ * <tt>Condition</tt> and <tt>Condition2</tt> instances.
+ *
+ * <p>
+ * Profiling is enabled by setting the <tt>nachos.conf</tt> key
+ * <tt>LockProfiler.enabled</tt> to <tt>true</tt>. Each synchronization object
+ * then registers itself with the profiler when it is created, and reports every
+ * acquire (or <tt>P()</tt>) to the record for its <i>creation site</i>: the
+ * first stack frame outside the synchronization classes. A condition variable
+ * reports each <tt>sleep()</tt> as a wait for a signal, which is counted apart
+ * from contention; reacquiring the lock afterwards is reported by the lock,
+ * including when <tt>Condition2.wakeAll()</tt> hands it over. All objects
+ * created at the same line of code share one record, so a lock embedded in a
+ * per-process structure is reported once, not once per process.
+ *
+ * <p>
+ * All times are in simulated ticks, as returned by
+ * <tt>Machine.timer().getTime()</tt>. The report is printed by
+ * <tt>ThreadedKernel.terminate()</tt>, just before the machine prints its own
+ * statistics.
+ *
+ * <p>
+ * When profiling is disabled, <tt>enabled</tt> is a constant <tt>false</tt>, and
+ * each instrumented operation costs a single test of it.
+ */
+public class LockProfiler {
+    /**
+     * <tt>true</tt> if synchronization objects should be profiled. Read once,
+     * when this class is loaded.
+     */
+    public static final boolean enabled = Config.getBoolean("LockProfiler.enabled", false);
+
+    /**
+     * Return the profiling record for the code that is creating a new
+     * synchronization object. Must only be called if <tt>enabled</tt> is
+     * <tt>true</tt>.
+     *
+     * <p>
+     * Objects created by another synchronization class for its own use, such as
+     * the per-waiter semaphores of <tt>Condition</tt>, are not profiled
+     * separately, since their waits are already accounted to the object that
+     * created them.
+     *
+     * @param kind the kind of object being created, e.g. <tt>"Lock"</tt>.
+     * @return the record shared by all objects created at the same site, or
+     *         <tt>null</tt> if the object is internal to another one.
+     */
+    static Site register(String kind) {
+        Lib.assertTrue(enabled);
+
+        // stack[0] is this method, stack[1] the constructor, stack[2] its caller
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        if (stack.length > 2 && isInstrumented(stack[2].getClassName()))
+            return null;
+
+        String where = "(unknown)";
+        for (int i = 0; i < stack.length; i++) {
+            if (!isInstrumented(stack[i].getClassName())) {
+                where = stack[i].toString();
+                break;
+            }
+        }
+
+        String key = kind + " " + where;
+
+        Site site = sites.get(key);
+        if (site == null) {
+            site = new Site(kind, where);
+            sites.put(key, site);
+        }
+
+        site.instances++;
+        return site;
+    }
+
+    private static boolean isInstrumented(String className) {
+        return className.equals(LockProfiler.class.getName()) || className.equals(Lock.class.getName())
+                || className.equals(Semaphore.class.getName()) || className.equals(Condition.class.getName())
+                || className.equals(Condition2.class.getName());
+    }
+
+    /**
+     * Return the current simulated time.
+     *
+     * @return the number of ticks since Nachos started.
+     */
+    static long now() {
+        return Machine.timer().getTime();
+    }
+
+    /**
+     * Print every creation site that saw at least one operation, most contended
+     * first. Sites are ordered by total wait time, then by number of contended
+     * acquires, then by number of acquires.
+     */
+    public static void print() {
+        if (!enabled)
+            return;
+
+        ArrayList<Site> sorted = new ArrayList<Site>(sites.values());
+        Collections.sort(sorted, new Comparator<Site>() {
+            public int compare(Site a, Site b) {
+                if (a.waitTicks != b.waitTicks)
+                    return (a.waitTicks > b.waitTicks) ? -1 : 1;
+                if (a.contended != b.contended)
+                    return (a.contended > b.contended) ? -1 : 1;
+                if (a.acquires != b.acquires)
+                    return (a.acquires > b.acquires) ? -1 : 1;
+                return a.where.compareTo(b.where);
+            }
+        });
+
+        System.out.println("Lock profile (ticks):");
+        System.out.println(String.format("%10s %10s %12s %10s %12s %10s %12s  %s", "acquires", "contended", "wait",
+                "max wait", "hold", "sleeps", "sleep", "site"));
+
+        for (Site site : sorted) {
+            if (site.acquires == 0 && site.sleeps == 0)
+                continue;
+
+            System.out.println(String.format("%10d %10d %12d %10d %12d %10d %12d  %s x%d at %s", site.acquires,
+                    site.contended, site.waitTicks, site.maxWaitTicks, site.holdTicks, site.sleeps, site.sleepTicks,
+                    site.kind, site.instances, site.where));
+        }
+
+        System.out.println("");
+    }
+
+    /**
+     * The statistics shared by all synchronization objects created at one site.
+     */
+    static class Site {
+        Site(String kind, String where) {
+            this.kind = kind;
+            this.where = where;
+        }
+
+        /**
+         * Record a completed acquire.
+         *
+         * @param contended <tt>true</tt> if the caller had to wait.
+         * @param waitStart the time the caller started waiting, if it had to.
+         */
+        void acquired(boolean contended, long waitStart) {
+            acquires++;
+
+            if (contended) {
+                long wait = now() - waitStart;
+
+                this.contended++;
+                waitTicks += wait;
+                maxWaitTicks = Math.max(maxWaitTicks, wait);
+            }
+        }
+
+        /**
+         * Record the end of a condition variable <tt>sleep()</tt>. Waiting for a
+         * signal is not contention, so it is not counted as an acquire.
+         *
+         * @param sleepStart the time the caller went to sleep.
+         * @param wokenAt    the time the caller was woken.
+         */
+        void slept(long sleepStart, long wokenAt) {
+            sleeps++;
+            sleepTicks += wokenAt - sleepStart;
+        }
+
+        /**
+         * Record a release.
+         *
+         * @param heldSince the time at which the released object was acquired.
+         */
+        void released(long heldSince) {
+            holdTicks += now() - heldSince;
+        }
+
+        String kind;
+        String where;
+        int instances = 0;
+        long acquires = 0;
+        long contended = 0;
+        long waitTicks = 0;
+        long maxWaitTicks = 0;
+        long holdTicks = 0;
+        long sleeps = 0;
+        long sleepTicks = 0;
+    }
+
+    private static HashMap<String, Site> sites = new HashMap<String, Site>();
+}
@@ -140,8 +140,11 @@ public class PriorityScheduler extends Scheduler {
 
 			pQueue.add(getThreadState(thread));
 
-			for (ThreadState threadState : pQueue) {
-				threadState.resetEffectivePriority();
+			// Cached effective priorities only matter to queues that donate
+			if (transferPriority) {
+				for (ThreadState threadState : pQueue) {
+					threadState.resetEffectivePriority();
+				}
 			}
 
 			getThreadState(thread).waitForAccess(this);
@@ -149,22 +152,63 @@ public class PriorityScheduler extends Scheduler {
 
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			getThreadState(thread).acquire(this);
+			setOwner(getThreadState(thread));
 		}
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
 			if (pickNextThread() == null) {
-				owner = null;
+				setOwner(null);
 				return null;
 			}
 
-			owner = pQueue.poll();
-			acquire(owner.getThread());
+			setOwner(pQueue.poll());
 			return owner.getThread();
 		}
 
+		/**
+		 * Hand this queue to a new owner. The previous owner stops counting the
+		 * threads waiting here as donors, so a thread's list of owned queues only
+		 * ever holds the queues it currently has access to.
+		 *
+		 * @param newOwner the thread that now has access, or <tt>null</tt>.
+		 */
+		private void setOwner(ThreadState newOwner) {
+			if (owner != null) {
+				owner.removeQueue(this);
+				owner.resetEffectivePriority();
+			}
+
+			owner = newOwner;
+
+			if (owner != null)
+				owner.acquire(this);
+		}
+
+		/**
+		 * Move every waiting thread to the ready queue, highest priority first. A
+		 * queue that does not transfer priority has no owner to track, so the
+		 * waiters are drained without going through <tt>nextThread()</tt>.
+		 *
+		 * @return the number of threads that were woken.
+		 */
+		public int wakeAll() {
+			if (transferPriority)
+				return super.wakeAll();
+
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			int count = 0;
+			for (ThreadState threadState = pQueue.poll(); threadState != null; threadState = pQueue.poll()) {
+				threadState.getThread().ready();
+				count++;
+			}
+
+			setOwner(null);
+			return count;
+		}
+
 		/**
 		 * Return the next thread that <tt>nextThread()</tt> would return, without
 		 * modifying the state of this queue.
@@ -257,6 +301,8 @@ public class PriorityScheduler extends Scheduler {
 
 				// Iterate over list of old queues this thread is still in
 				for (PriorityQueue previousQueue : previousQueues) {
+					if (!previousQueue.transferPriority)
+						continue;
 
 					// Iterate over the states in those queues
 					for (ThreadState threadState : previousQueue.pQueue) {
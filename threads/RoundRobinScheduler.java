@@ -56,6 +56,23 @@ public class RoundRobinScheduler extends Scheduler {
 			return (KThread) waitQueue.removeFirst();
 		}
 
+		/**
+		 * Move every waiting thread to the ready queue, in FIFO order, and empty
+		 * the queue.
+		 *
+		 * @return the number of threads that were woken.
+		 */
+		public int wakeAll() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			int count = waitQueue.size();
+			for (KThread thread : waitQueue)
+				thread.ready();
+			waitQueue.clear();
+
+			return count;
+		}
+
 		/**
 		 * The specified thread has received exclusive access, without using
 		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no threads are
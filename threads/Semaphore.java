@@ -37,13 +37,22 @@ public class Semaphore {
 	public void P() {
 		boolean intStatus = Machine.interrupt().disable();
 
-		if (value == 0) {
+		boolean contended = (value == 0);
+		long waitStart = 0;
+
+		if (contended) {
+			if (LockProfiler.enabled)
+				waitStart = LockProfiler.now();
+
 			waitQueue.waitForAccess(KThread.currentThread());
 			KThread.sleep();
 		} else {
 			value--;
 		}
 
+		if (LockProfiler.enabled && profile != null)
+			profile.acquired(contended, waitStart);
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -98,4 +107,6 @@ public class Semaphore {
 
 	private int value;
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+	private LockProfiler.Site profile = LockProfiler.enabled ? LockProfiler.register("Semaphore") : null;
 }
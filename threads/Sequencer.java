@@ -0,0 +1,91 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>sequencer</i> hands out consecutive tickets, starting at zero. Together
+ * with an <tt>EventCount</tt> it totally orders the threads that draw tickets:
+ *
+ * <p>
+ * <blockquote>
+ *
+ * <pre>
+ * int ticket = sequencer.ticket();
+ * served.await(ticket);
+ * // critical section
+ * served.advance();
+ * </pre>
+ *
+ * </blockquote>
+ *
+ * @see nachos.threads.EventCount
+ */
+public class Sequencer {
+    /**
+     * Allocate a new sequencer. The first ticket will be zero.
+     */
+    public Sequencer() {
+    }
+
+    /**
+     * Atomically return the next ticket.
+     *
+     * @return a ticket that no other call has returned.
+     */
+    public int ticket() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        int ticket = next++;
+
+        Machine.interrupt().restore(intStatus);
+        return ticket;
+    }
+
+    private static class TicketTest implements Runnable {
+        TicketTest(Sequencer sequencer, EventCount served, int[] order, CountDownLatch done) {
+            this.sequencer = sequencer;
+            this.served = served;
+            this.order = order;
+            this.done = done;
+        }
+
+        public void run() {
+            int ticket = sequencer.ticket();
+            served.await(ticket);
+
+            order[ticket] = served.read();
+            KThread.yield();
+
+            served.advance();
+            done.countDown();
+        }
+
+        private Sequencer sequencer;
+        private EventCount served;
+        private int[] order;
+        private CountDownLatch done;
+    }
+
+    /**
+     * Test that this module, and <tt>EventCount</tt>, are working.
+     */
+    public static void selfTest() {
+        int numThreads = 10;
+
+        Sequencer sequencer = new Sequencer();
+        EventCount served = new EventCount();
+        CountDownLatch done = new CountDownLatch(numThreads);
+        int[] order = new int[numThreads];
+
+        for (int i = 0; i < numThreads; i++)
+            new KThread(new TicketTest(sequencer, served, order, done)).setName("ticket " + i).fork();
+
+        done.await();
+
+        Lib.assertTrue(served.read() == numThreads);
+        for (int i = 0; i < numThreads; i++)
+            Lib.assertTrue(order[i] == i);
+    }
+
+    private int next = 0;
+}
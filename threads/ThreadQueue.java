@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple threads.
@@ -89,6 +91,30 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Give access to every thread waiting on this queue at once, moving each of
+     * them to the ready queue. This is used by primitives such as barriers and
+     * latches, where a single event releases all waiters, so that they can drain
+     * the queue in one pass instead of one <tt>nextThread()</tt> per wakeup.
+     *
+     * <p>
+     * Subclasses may override this with a cheaper bulk removal, but must leave the
+     * queue empty.
+     *
+     * @return the number of threads that were woken.
+     */
+    public int wakeAll() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        int count = 0;
+        for (KThread thread = nextThread(); thread != null; thread = nextThread()) {
+            thread.ready();
+            count++;
+        }
+
+        return count;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
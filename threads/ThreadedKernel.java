@@ -41,7 +41,8 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+     * <tt>SynchList</tt>, <tt>Condition2</tt>, <tt>CyclicBarrier</tt>,
+     * <tt>Sequencer</tt>, and <tt>ElevatorBank</tt> classes. Note that the
      * autograder never calls this method, so it is safe to put additional tests
      * here.
      */
@@ -49,6 +50,9 @@ public class ThreadedKernel extends Kernel {
         KThread.selfTest();
         Semaphore.selfTest();
         SynchList.selfTest();
+        Condition2.selfTest();
+        CyclicBarrier.selfTest();
+        Sequencer.selfTest();
         Communicator.selfTest();
         if (Machine.bank() != null) {
             ElevatorBank.selfTest();
@@ -62,9 +66,12 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Prints the lock profile, if profiling is enabled,
+     * before halting the machine. Never returns.
      */
     public void terminate() {
+        LockProfiler.print();
+
         Machine.halt();
     }
 
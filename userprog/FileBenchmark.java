@@ -0,0 +1,102 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+
+/**
+ * Measures how fast user programs can move file data through the kernel, by
+ * copying a large file and timing it.
+ *
+ * <p>
+ * The benchmark is run by <tt>UserKernel.selfTest()</tt> when the
+ * <tt>nachos.conf</tt> key <tt>FileBenchmark.fileSize</tt> is set to a positive
+ * number of bytes. It creates a test file of that size in the file system and
+ * copies it with each of the programs in <tt>programs</tt> in turn:
+ * <tt>cp.coff</tt>, and <tt>mmapcp.coff</tt>, which maps the source file with
+ * mmap() and writes it out from memory. The checked-in <tt>cp.coff</tt> was
+ * built before <tt>fcopy()</tt> and uses read() and write(); once rebuilt from
+ * <tt>cp.c</tt>, it copies inside the kernel with sendfile(), falling back to
+ * read() and write() where that is not available. For each, it checks that the
+ * copy matches and prints the simulated ticks and host milliseconds the copy
+ * took. A program whose executable is missing is skipped.
+ */
+public class FileBenchmark {
+    /**
+     * Run the benchmark, if it is enabled.
+     */
+    public static void selfTest() {
+        int fileSize = Config.getInteger("FileBenchmark.fileSize", 0);
+        if (fileSize <= 0)
+            return;
+
+        byte[] contents = new byte[fileSize];
+        for (int i = 0; i < fileSize; i++)
+            contents[i] = (byte) Lib.random(256);
+
+        Lib.assertTrue(writeFile(inName, contents));
+
+        for (String program : programs) {
+            OpenFile executable = ThreadedKernel.fileSystem.open(program, false);
+            if (executable == null) {
+                System.out.println(program + " not found, skipped");
+                continue;
+            }
+            executable.close();
+
+            long startTicks = Machine.timer().getTime();
+            long startMillis = System.currentTimeMillis();
+
+            run(program, new String[] { program, inName, outName });
+
+            long ticks = Machine.timer().getTime() - startTicks;
+            long millis = System.currentTimeMillis() - startMillis;
+
+            Lib.assertTrue(Arrays.equals(readFile(outName, fileSize), contents), program + " produced a bad copy");
+            ThreadedKernel.fileSystem.remove(outName);
+
+            System.out.println(program + " " + fileSize + " bytes: " + ticks + " ticks, " + millis + " ms");
+        }
+
+        ThreadedKernel.fileSystem.remove(inName);
+    }
+
+    /**
+     * Run a user program to completion.
+     *
+     * @param name the name of the file containing the executable.
+     * @param args the arguments to pass to the executable.
+     */
+    private static void run(String name, String[] args) {
+        UserProcess process = UserProcess.newUserProcess();
+        Lib.assertTrue(process.execute(name, args), "could not run " + name);
+        process.thread.join();
+    }
+
+    private static boolean writeFile(String name, byte[] contents) {
+        OpenFile file = ThreadedKernel.fileSystem.open(name, true);
+        if (file == null)
+            return false;
+
+        int amount = file.write(contents, 0, contents.length);
+        file.close();
+
+        return amount == contents.length;
+    }
+
+    private static byte[] readFile(String name, int length) {
+        OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+        if (file == null)
+            return null;
+
+        byte[] contents = new byte[length];
+        int amount = file.read(contents, 0, length);
+        file.close();
+
+        return (amount == length) ? contents : null;
+    }
+
+    private static final String[] programs = { "cp.coff", "mmapcp.coff" };
+    private static final String inName = "bench.in", outName = "bench.out";
+}
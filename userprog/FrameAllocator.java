@@ -0,0 +1,309 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Keeps track of which frames of physical memory are free.
+ *
+ * <p>
+ * Free frames are recorded in a bitmap, one bit per frame, packed into an array
+ * of <tt>long</tt>s. Finding a free frame skips whole words of allocated frames
+ * at a time, and a batch of frames for a new process is allocated under a single
+ * acquire of the allocator's lock, so loading a large program does not take the
+ * lock once per page.
+ *
+ * <p>
+ * A frame can be shared by several processes, for copy-on-write after
+ * <tt>fork()</tt>. Each allocated frame has a reference count, which
+ * <tt>share()</tt> increments and <tt>free()</tt> decrements; the frame only
+ * becomes free again when the count reaches zero.
+ *
+ * <p>
+ * The allocator also remembers the number of frames in use and the largest
+ * number ever in use, which <tt>UserKernel.terminate()</tt> reports.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator, with every frame free.
+     *
+     * @param numFrames the number of frames of physical memory.
+     */
+    public FrameAllocator(int numFrames) {
+        Lib.assertTrue(numFrames >= 0);
+
+        this.numFrames = numFrames;
+        numFree = numFrames;
+
+        references = new int[numFrames];
+        freeMap = new long[(numFrames + bitsPerWord - 1) / bitsPerWord];
+        for (int frame = 0; frame < numFrames; frame++)
+            freeMap[frame / bitsPerWord] |= 1L << (frame % bitsPerWord);
+    }
+
+    /**
+     * Allocate a single frame.
+     *
+     * @return the frame number, or -1 if physical memory is full.
+     */
+    public int allocate() {
+        lock.acquire();
+
+        int frame = -1;
+        if (numFree > 0)
+            frame = take(findFree());
+
+        lock.release();
+        return frame;
+    }
+
+    /**
+     * Allocate a frame for every element of <i>frames</i>. Either all of them are
+     * allocated, or none are.
+     *
+     * @param frames the array to fill with frame numbers.
+     * @return <tt>true</tt> if the frames were allocated, or <tt>false</tt> if
+     *         there are not enough free frames.
+     */
+    public boolean allocate(int[] frames) {
+        lock.acquire();
+
+        boolean enough = (numFree >= frames.length);
+        if (enough) {
+            for (int i = 0; i < frames.length; i++)
+                frames[i] = take(findFree());
+        }
+
+        lock.release();
+        return enough;
+    }
+
+    /**
+     * Allocate <i>count</i> frames with consecutive frame numbers.
+     *
+     * @param count the number of frames to allocate.
+     * @return the first of the frames, or -1 if no run of <i>count</i> free
+     *         frames exists.
+     */
+    public int allocateContiguous(int count) {
+        Lib.assertTrue(count > 0);
+
+        lock.acquire();
+
+        int first = -1;
+        int runStart = 0, runLength = 0;
+
+        for (int frame = 0; frame < numFrames && count <= numFree; frame++) {
+            if (!isFree(frame)) {
+                runLength = 0;
+                // skip the rest of a fully allocated word
+                if (freeMap[frame / bitsPerWord] == 0)
+                    frame |= bitsPerWord - 1;
+                continue;
+            }
+
+            if (runLength++ == 0)
+                runStart = frame;
+
+            if (runLength == count) {
+                first = runStart;
+                break;
+            }
+        }
+
+        if (first != -1) {
+            for (int frame = first; frame < first + count; frame++)
+                take(frame);
+        }
+
+        lock.release();
+        return first;
+    }
+
+    /**
+     * Add a reference to every frame in <i>frames</i>, so that each takes one
+     * more call to <tt>free()</tt> to free.
+     *
+     * @param frames the frames to share. Each must currently be allocated.
+     */
+    public void share(int[] frames) {
+        lock.acquire();
+
+        for (int i = 0; i < frames.length; i++) {
+            Lib.assertTrue(!isFree(frames[i]));
+            references[frames[i]]++;
+        }
+
+        lock.release();
+    }
+
+    /**
+     * Return the number of references to a frame.
+     *
+     * @param frame the frame.
+     * @return the number of references, or 0 if the frame is free.
+     */
+    public int getReferenceCount(int frame) {
+        return references[frame];
+    }
+
+    /**
+     * Drop a reference to a frame, returning it to the free pool if that was the
+     * last one.
+     *
+     * @param frame the frame to free. Must currently be allocated.
+     */
+    public void free(int frame) {
+        lock.acquire();
+
+        give(frame);
+
+        lock.release();
+    }
+
+    /**
+     * Drop a reference to every frame in <i>frames</i>, returning each to the
+     * free pool if that was its last reference.
+     *
+     * @param frames the frames to free. Each must currently be allocated.
+     */
+    public void free(int[] frames) {
+        lock.acquire();
+
+        for (int i = 0; i < frames.length; i++)
+            give(frames[i]);
+
+        lock.release();
+    }
+
+    /**
+     * Return the number of frames of physical memory.
+     *
+     * @return the total number of frames.
+     */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * Return the number of frames that are currently free.
+     *
+     * @return the number of free frames.
+     */
+    public int getNumFree() {
+        return numFree;
+    }
+
+    /**
+     * Return the number of frames that are currently allocated.
+     *
+     * @return the number of allocated frames.
+     */
+    public int getNumUsed() {
+        return numFrames - numFree;
+    }
+
+    /**
+     * Return the largest number of frames that have been allocated at once.
+     *
+     * @return the peak number of allocated frames.
+     */
+    public int getPeakUsed() {
+        return peakUsed;
+    }
+
+    private boolean isFree(int frame) {
+        return (freeMap[frame / bitsPerWord] & (1L << (frame % bitsPerWord))) != 0;
+    }
+
+    /**
+     * Return a free frame, searching from the word that last had one. There must
+     * be a free frame.
+     */
+    private int findFree() {
+        for (int i = 0; i < freeMap.length; i++) {
+            int word = (hint + i) % freeMap.length;
+            if (freeMap[word] != 0) {
+                hint = word;
+                return word * bitsPerWord + Long.numberOfTrailingZeros(freeMap[word]);
+            }
+        }
+
+        Lib.assertNotReached("no free frame");
+        return -1;
+    }
+
+    private int take(int frame) {
+        Lib.assertTrue(frame >= 0 && frame < numFrames && isFree(frame));
+
+        freeMap[frame / bitsPerWord] &= ~(1L << (frame % bitsPerWord));
+        references[frame] = 1;
+        numFree--;
+        peakUsed = Math.max(peakUsed, numFrames - numFree);
+
+        return frame;
+    }
+
+    private void give(int frame) {
+        Lib.assertTrue(frame >= 0 && frame < numFrames && !isFree(frame));
+
+        if (--references[frame] > 0)
+            return;
+
+        freeMap[frame / bitsPerWord] |= 1L << (frame % bitsPerWord);
+        numFree++;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+        FrameAllocator allocator = new FrameAllocator(200);
+
+        int[] frames = new int[150];
+        Lib.assertTrue(allocator.allocate(frames));
+        Lib.assertTrue(allocator.getNumUsed() == 150 && allocator.getNumFree() == 50);
+        for (int i = 0; i < frames.length; i++)
+            Lib.assertTrue(frames[i] == i);
+
+        // too many frames: nothing is allocated
+        Lib.assertTrue(!allocator.allocate(new int[51]));
+        Lib.assertTrue(allocator.getNumFree() == 50);
+
+        // free every other frame of the first 100, leaving only short runs there
+        for (int i = 0; i < 100; i += 2)
+            allocator.free(frames[i]);
+
+        int first = allocator.allocateContiguous(40);
+        Lib.assertTrue(first == 150);
+        Lib.assertTrue(allocator.allocateContiguous(11) == -1);
+        Lib.assertTrue(allocator.allocateContiguous(1) == 0);
+
+        while (allocator.allocate() != -1)
+            ;
+        Lib.assertTrue(allocator.getNumFree() == 0 && allocator.getPeakUsed() == 200);
+
+        // a shared frame is only freed by its last reference
+        allocator.share(new int[] { 7 });
+        Lib.assertTrue(allocator.getReferenceCount(7) == 2);
+        allocator.free(7);
+        Lib.assertTrue(allocator.getNumFree() == 0 && allocator.getReferenceCount(7) == 1);
+        allocator.free(7);
+        Lib.assertTrue(allocator.getNumFree() == 1 && allocator.allocate() == 7);
+    }
+
+    private int numFrames;
+    private int numFree;
+    private int peakUsed = 0;
+
+    /** The number of references to each allocated frame. */
+    private int[] references;
+    /** Bit <i>f</i> % 64 of word <i>f</i> / 64 is set if frame <i>f</i> is free. */
+    private long[] freeMap;
+    /** The word most recently found to have a free frame. */
+    private int hint = 0;
+
+    private Lock lock = new Lock();
+
+    private static final int bitsPerWord = 64;
+}
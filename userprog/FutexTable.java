@@ -0,0 +1,164 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The kernel side of the futex syscalls. A futex is simply a 32-bit word of
+ * user memory; this table keeps track of the threads sleeping on each word.
+ *
+ * <p>
+ * Futexes are identified by a <tt>Key</tt>: the address space holding the word
+ * and its offset in that space. A private page is keyed by its process and
+ * virtual address, and a page of a shared memory segment by the segment and
+ * offset, so that every process attached to the segment finds the same
+ * futexes. Unlike a physical address, a key stays the same while the page is
+ * evicted or moved to another frame. Sleepers are spread over a fixed number
+ * of hashed buckets, each with its own lock, so that waits and wakes on
+ * unrelated futexes do not contend with each other.
+ *
+ * <p>
+ * The bucket lock closes the race between a waiter checking the futex value and
+ * going to sleep: a waker must take the same bucket lock, so it either sees the
+ * waiter on the list or runs before the waiter checks the value.
+ */
+public class FutexTable {
+    /**
+     * Allocate a new futex table.
+     *
+     * @param numBuckets the number of hash buckets. Must be a power of two.
+     */
+    public FutexTable(int numBuckets) {
+        Lib.assertTrue(numBuckets > 0 && (numBuckets & (numBuckets - 1)) == 0);
+
+        buckets = new Bucket[numBuckets];
+        for (int i = 0; i < numBuckets; i++)
+            buckets[i] = new Bucket();
+    }
+
+    /**
+     * If the futex word still holds <i>expected</i>, add a waiter for
+     * <i>key</i>. The caller must keep the page holding the word pinned until
+     * this returns, and then call <tt>sleep()</tt> on the waiter once it has
+     * unpinned the page.
+     *
+     * @param key      the key identifying the futex.
+     * @param paddr    the physical address of the futex word.
+     * @param expected the value the caller last saw in the futex word.
+     * @return the new waiter, or <tt>null</tt> if the word no longer held
+     *         <i>expected</i>.
+     */
+    public Waiter enqueue(Key key, int paddr, int expected) {
+        Bucket bucket = getBucket(key);
+
+        bucket.lock.acquire();
+
+        if (Lib.bytesToInt(Machine.processor().getMemory(), paddr) != expected) {
+            bucket.lock.release();
+            return null;
+        }
+
+        Waiter waiter = new Waiter(key);
+        bucket.waiters.add(waiter);
+
+        bucket.lock.release();
+
+        return waiter;
+    }
+
+    /**
+     * Wake up to <i>count</i> threads sleeping on the futex with <i>key</i>,
+     * in the order they went to sleep.
+     *
+     * @param key   the key identifying the futex.
+     * @param count the maximum number of threads to wake.
+     * @return the number of threads woken.
+     */
+    public int wake(Key key, int count) {
+        Bucket bucket = getBucket(key);
+        int woken = 0;
+
+        bucket.lock.acquire();
+
+        for (Iterator<Waiter> i = bucket.waiters.iterator(); i.hasNext() && woken < count;) {
+            Waiter waiter = i.next();
+            if (!waiter.key.equals(key))
+                continue;
+
+            i.remove();
+            waiter.wakeup.V();
+            woken++;
+        }
+
+        bucket.lock.release();
+
+        return woken;
+    }
+
+    private Bucket getBucket(Key key) {
+        int hash = key.hashCode() * 0x9E3779B1;
+        return buckets[(hash >>> 16) & (buckets.length - 1)];
+    }
+
+    /**
+     * The identity of a futex word: the address space it is in, and its offset
+     * there.
+     */
+    public static class Key {
+        /**
+         * Allocate a new key.
+         *
+         * @param space  the process or shared memory segment holding the word.
+         * @param offset the offset of the word in <i>space</i>.
+         */
+        public Key(Object space, int offset) {
+            this.space = space;
+            this.offset = offset;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key key = (Key) o;
+            return key.space == space && key.offset == offset;
+        }
+
+        public int hashCode() {
+            // futex words are aligned, so the low two bits carry no information
+            return System.identityHashCode(space) * 31 + (offset >>> 2);
+        }
+
+        private Object space;
+        private int offset;
+    }
+
+    private static class Bucket {
+        Lock lock = new Lock();
+        LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+    }
+
+    /**
+     * A thread that has been added to the table and is about to sleep.
+     */
+    public static class Waiter {
+        Waiter(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * Sleep until this waiter is woken by <tt>wake()</tt>.
+         */
+        public void sleep() {
+            wakeup.P();
+        }
+
+        private Key key;
+        private Semaphore wakeup = new Semaphore(0);
+    }
+
+    private Bucket[] buckets;
+}
@@ -0,0 +1,243 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A pipe: a bounded ring buffer of bytes in the kernel, written at one end and
+ * read at the other. Each end is an <tt>OpenFile</tt>, so a process uses it
+ * through an ordinary file descriptor, and processes forked after the pipe was
+ * created share its ends.
+ *
+ * <p>
+ * A read returns as soon as any bytes are available, up to the number asked
+ * for, and blocks while the pipe is empty. Once the write end is closed and
+ * the pipe has been drained, a read returns 0. A write blocks until all of its
+ * bytes have been taken, and fails once the read end is closed.
+ *
+ * <p>
+ * A reader blocked on an empty pipe leaves its buffer with the pipe. The next
+ * writer copies straight into it rather than into the ring, so that data
+ * passed between a waiting reader and a writer is copied once, from the
+ * writer's memory to the reader's. <tt>UserProcess</tt> hands the pipe its
+ * frames of main memory directly, one page at a time, so that a reader blocked
+ * on an empty pipe, or a writer blocked on a full one, keeps only one frame
+ * pinned.
+ */
+public class Pipe {
+    /**
+     * Allocate a new, empty pipe.
+     *
+     * @param capacity the most bytes the ring buffer holds.
+     */
+    public Pipe(int capacity) {
+        Lib.assertTrue(capacity > 0);
+
+        ring = new byte[capacity];
+    }
+
+    /**
+     * Return the end of this pipe that can be read.
+     *
+     * @return the read end.
+     */
+    public OpenFile getReadEnd() {
+        return readEnd;
+    }
+
+    /**
+     * Return the end of this pipe that can be written.
+     *
+     * @return the write end.
+     */
+    public OpenFile getWriteEnd() {
+        return writeEnd;
+    }
+
+    private int read(byte[] buf, int offset, int length) {
+        if (length == 0)
+            return 0;
+
+        lock.acquire();
+
+        // leave the buffer for a writer to fill if nothing is waiting
+        if (count == 0 && writerOpen && pendingBuf == null) {
+            pendingBuf = buf;
+            pendingOffset = offset;
+            pendingLength = length;
+            pendingDone = -1;
+
+            while (pendingDone == -1 && count == 0 && writerOpen)
+                dataAvailable.sleep();
+
+            int done = pendingDone;
+            pendingBuf = null;
+            if (done != -1) {
+                lock.release();
+                return done;
+            }
+        }
+
+        while (count == 0 && writerOpen)
+            dataAvailable.sleep();
+
+        int amount = Math.min(length, count);
+        int first = Math.min(amount, ring.length - head);
+        System.arraycopy(ring, head, buf, offset, first);
+        System.arraycopy(ring, 0, buf, offset + first, amount - first);
+
+        head = (head + amount) % ring.length;
+        count -= amount;
+        UserKernel.numPipeBytes += amount;
+
+        if (amount > 0)
+            spaceAvailable.wakeAll();
+
+        lock.release();
+        return amount;
+    }
+
+    private int write(byte[] buf, int offset, int length) {
+        lock.acquire();
+
+        int amount = 0;
+        while (amount < length && readerOpen) {
+            if (pendingBuf != null && pendingDone == -1 && count == 0) {
+                // a reader is waiting on an empty pipe
+                int direct = Math.min(length - amount, pendingLength);
+                System.arraycopy(buf, offset + amount, pendingBuf, pendingOffset, direct);
+
+                pendingDone = direct;
+                amount += direct;
+                UserKernel.numPipeBytes += direct;
+                UserKernel.numPipeDirectBytes += direct;
+
+                dataAvailable.wakeAll();
+                continue;
+            }
+
+            if (count == ring.length) {
+                spaceAvailable.sleep();
+                continue;
+            }
+
+            int chunk = Math.min(length - amount, ring.length - count);
+            int tail = (head + count) % ring.length;
+            int first = Math.min(chunk, ring.length - tail);
+            System.arraycopy(buf, offset + amount, ring, tail, first);
+            System.arraycopy(buf, offset + amount + first, ring, 0, chunk - first);
+
+            count += chunk;
+            amount += chunk;
+
+            dataAvailable.wakeAll();
+        }
+
+        lock.release();
+        return (amount == 0 && length > 0) ? -1 : amount;
+    }
+
+    private void closeEnd(boolean reader) {
+        lock.acquire();
+
+        if (reader)
+            readerOpen = false;
+        else
+            writerOpen = false;
+
+        dataAvailable.wakeAll();
+        spaceAvailable.wakeAll();
+
+        lock.release();
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+        final Pipe pipe = new Pipe(1000);
+        final int total = 5000;
+
+        // a writer thread sending more than the ring holds, in odd-sized chunks
+        KThread writer = new KThread(new Runnable() {
+            public void run() {
+                byte[] chunk = new byte[700];
+                for (int sent = 0; sent < total; sent += chunk.length) {
+                    int length = Math.min(chunk.length, total - sent);
+                    for (int i = 0; i < length; i++)
+                        chunk[i] = (byte) (sent + i);
+                    Lib.assertTrue(pipe.getWriteEnd().write(chunk, 0, length) == length);
+                }
+                pipe.getWriteEnd().close();
+            }
+        }).setName("pipe writer");
+        writer.fork();
+
+        byte[] buf = new byte[1024];
+        int received = 0, amount;
+        while ((amount = pipe.getReadEnd().read(buf, 0, buf.length)) > 0) {
+            for (int i = 0; i < amount; i++)
+                Lib.assertTrue(buf[i] == (byte) (received + i));
+            received += amount;
+        }
+        Lib.assertTrue(amount == 0 && received == total);
+        writer.join();
+
+        // writing fails once nobody can read
+        Pipe broken = new Pipe(16);
+        broken.getReadEnd().close();
+        Lib.assertTrue(broken.getWriteEnd().write(buf, 0, 1) == -1);
+        Lib.assertTrue(broken.getWriteEnd().read(buf, 0, 1) == -1);
+    }
+
+    private class End extends OpenFile {
+        End(boolean reader) {
+            super(null, "pipe");
+
+            this.reader = reader;
+        }
+
+        public int read(byte[] buf, int offset, int length) {
+            if (!reader || closed)
+                return -1;
+
+            return Pipe.this.read(buf, offset, length);
+        }
+
+        public int write(byte[] buf, int offset, int length) {
+            if (reader || closed)
+                return -1;
+
+            return Pipe.this.write(buf, offset, length);
+        }
+
+        public void close() {
+            if (closed)
+                return;
+
+            closed = true;
+            closeEnd(reader);
+        }
+
+        private boolean reader;
+        private boolean closed = false;
+    }
+
+    private byte[] ring;
+    /** The position of the oldest byte in the ring, and the number of bytes. */
+    private int head = 0, count = 0;
+    private boolean readerOpen = true, writerOpen = true;
+
+    /** The buffer of a reader waiting for a writer to fill it, or <tt>null</tt>. */
+    private byte[] pendingBuf = null;
+    private int pendingOffset, pendingLength;
+    /** The number of bytes a writer put in <tt>pendingBuf</tt>, or -1. */
+    private int pendingDone;
+
+    private OpenFile readEnd = new End(true);
+    private OpenFile writeEnd = new End(false);
+
+    private Lock lock = new Lock();
+    private Condition2 dataAvailable = new Condition2(lock);
+    private Condition2 spaceAvailable = new Condition2(lock);
+}
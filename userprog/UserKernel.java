@@ -1,7 +1,6 @@
 package nachos.userprog;
 
 import nachos.machine.*;
-import java.util.LinkedList;
 import nachos.threads.*;
 import nachos.userprog.*;
 
@@ -28,14 +27,8 @@ public class UserKernel extends ThreadedKernel {
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
 	    });
-		//Linked list with all free physical available pages
-		freePages = new LinkedList<Integer>();
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		for(Integer i = 0; i < numPhysPages; i++) {
-			freePages.add(i);
-		}
-		
-		pageLock = new Lock();
+	frameAllocator = new FrameAllocator(Machine.processor().getNumPhysPages());
+	futexTable = new FutexTable(numFutexBuckets);
     }
 
     /**
@@ -44,6 +37,10 @@ public class UserKernel extends ThreadedKernel {
     public void selfTest() {
 	super.selfTest();
 
+	FrameAllocator.selfTest();
+	FileBenchmark.selfTest();
+	Pipe.selfTest();
+
 	System.out.println("Testing the console device. Typed characters");
 	System.out.println("will be echoed until q is typed.");
 
@@ -115,6 +112,21 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	System.out.println("Frames: used " + frameAllocator.getNumUsed() + ", free "
+			   + frameAllocator.getNumFree() + ", peak used "
+			   + frameAllocator.getPeakUsed());
+	if (Machine.processor().hasTLB())
+	    System.out.println("TLB: " + numTLBPrefills + " entries prefilled on context switches");
+	if (numSendfileCalls > 0)
+	    System.out.println("Sendfile: " + numSendfileBytes + " bytes in " + numSendfileCalls + " calls");
+	if (numVectorCalls > 0)
+	    System.out.println("Vectored I/O: " + numVectorBuffers + " buffers in " + numVectorCalls + " readv/writev calls");
+	if (numRingEnters > 0)
+	    System.out.println("Syscall rings: " + numRingRequests + " requests in " + numRingEnters + " ring_enter calls");
+	if (numPipes > 0)
+	    System.out.println("Pipes: " + numPipes + " created, " + numPipeBytes + " bytes through them, "
+			       + numPipeDirectBytes + " copied straight to a waiting reader");
+
 	super.terminate();
     }
 
@@ -124,12 +136,31 @@ public class UserKernel extends ThreadedKernel {
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 	
-	//linked list for free available pages
-    public static LinkedList<Integer> freePages;
-    
-    //Lock for free availble page access 
-    public static Lock pageLock;
+    /** Globally accessible allocator for frames of physical memory. */
+    public static FrameAllocator frameAllocator;
 	
+    /** Globally accessible table of threads sleeping on user futexes. */
+    public static FutexTable futexTable;
+
+    private static final int numFutexBuckets = 64;
+
+    /** The number of TLB entries reloaded when processes are switched back in. */
+    static int numTLBPrefills = 0;
+
+    /** The number of sendfile() calls, and of the bytes they copied. */
+    static int numSendfileCalls = 0;
+    static long numSendfileBytes = 0;
+
+    /** The number of readv() and writev() calls, and of the buffers they named. */
+    static int numVectorCalls = 0, numVectorBuffers = 0;
+
+    /** The number of ring_enter() calls, and of the requests they handled. */
+    static int numRingEnters = 0, numRingRequests = 0;
+
+    /** The number of pipes created, and of bytes read from them. */
+    static int numPipes = 0;
+    static long numPipeBytes = 0, numPipeDirectBytes = 0;
+
     // the first process started by the machine
     public static UserProcess rootProcess;
 
@@ -39,6 +39,11 @@ public class UserProcess {
 
         Statuses = new HashMap<Integer, Integer>();
         hmLock = new Lock();
+
+        if (Machine.processor().hasTLB()) {
+            tlbPages = new int[Machine.processor().getTLBSize()];
+            Arrays.fill(tlbPages, -1);
+        }
     }
 
     /**
@@ -81,7 +86,9 @@ public class UserProcess {
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. With a TLB, the TLB is refilled with the
+     * pages this process had in it when it was switched out, so that it does
+     * not have to miss on each of them again.
      */
     public void restoreState() {
         Lib.debug(dbgProcess, "UserProcess.restoreState()");
@@ -91,35 +98,164 @@ public class UserProcess {
 
             Machine.processor().setPageTable(pageTable);
 
-        else {
-            int tlbSize = Machine.processor().getTLBSize();
+        else
+
+            prefillTLB();
+    }
 
-            Lib.debug(dbgProcess, "TLB Size: " + String.valueOf(tlbSize));
+    /**
+     * Load the TLB with this process's entries for the pages it last had in it,
+     * as far as they are still resident, and clear every other TLB entry. The
+     * used bits of the loaded entries are clear, so they only record use from
+     * now on.
+     */
+    protected void prefillTLB() {
+        Processor processor = Machine.processor();
 
-            for (int index = 0; index < tlbSize; index++) {
-                Machine.processor().writeTLBEntry(index, pageTable[index]);
+        for (int index = 0; index < tlbPages.length; index++) {
+            TranslationEntry entry = (tlbPages[index] == -1) ? null : getTranslation(tlbPages[index]);
+
+            if (entry == null || !entry.valid) {
+                clearTLBEntry(index);
+            } else {
+                tlbScratch.vpn = entry.vpn;
+                tlbScratch.ppn = entry.ppn;
+                tlbScratch.valid = true;
+                tlbScratch.readOnly = entry.readOnly;
+                tlbScratch.used = false;
+                tlbScratch.dirty = entry.dirty;
+                processor.writeTLBEntry(index, tlbScratch);
+                UserKernel.numTLBPrefills++;
             }
+        }
+    }
+
+    /**
+     * Put a translation into the TLB after a miss: into a free entry if there is
+     * one, or else over the next entry in round-robin order. The TLB is not
+     * read, since this process's copy of which page is in each entry says which
+     * are free; the victim is passed to <tt>syncTLBEntry()</tt> first.
+     *
+     * @param entry the translation to load.
+     */
+    protected void refillTLB(TranslationEntry entry) {
+        int tlbSize = tlbPages.length;
 
+        int index = -1;
+        for (int i = 0; i < tlbSize && index == -1; i++) {
+            if (tlbPages[i] == -1)
+                index = i;
         }
+
+        if (index == -1) {
+            index = tlbHand;
+            tlbHand = (tlbHand + 1) % tlbSize;
+            syncTLBEntry(index);
+        }
+
+        setTLBEntry(index, entry);
+    }
+
+    /**
+     * Copy anything the processor has recorded in a TLB entry back to this
+     * process's page table, before the entry is replaced. This process does not
+     * track used or dirty bits, so this does nothing.
+     *
+     * @param index the TLB entry.
+     */
+    protected void syncTLBEntry(int index) {
+    }
+
+    /**
+     * Write a TLB entry, and remember which page it holds.
+     *
+     * @param index the TLB entry.
+     * @param entry the translation to write.
+     */
+    protected void setTLBEntry(int index, TranslationEntry entry) {
+        Machine.processor().writeTLBEntry(index, entry);
+        tlbPages[index] = entry.vpn;
+    }
+
+    /**
+     * Invalidate a TLB entry.
+     *
+     * @param index the TLB entry.
+     */
+    protected void clearTLBEntry(int index) {
+        Machine.processor().writeTLBEntry(index, invalidTLBEntry);
+        tlbPages[index] = -1;
     }
 
-	// translate virtual address to physical address, or returns -1 if this doesn't work
-	public int translate (int vaddr) {
-		//check if virtual address is in correct range
-		//if(vaddr < 0 || vaddr >= numPages*pageSize) {
-		//	return -1;
-		//}
+    /**
+     * Find the TLB entry holding a page, without reading the TLB. This process
+     * must be running.
+     *
+     * @param vpn the page.
+     * @return the index of the entry, or -1 if the page is not in the TLB.
+     */
+    protected int findTLBEntry(int vpn) {
+        for (int i = 0; i < tlbPages.length; i++) {
+            if (tlbPages[i] == vpn)
+                return i;
+        }
+
+        return -1;
+    }
 
-		int virtPageNum = Machine.processor().pageFromAddress(vaddr); // virtual page number
-		//if (!pageTable[virtPageNum].valid) {
-		//	return -1;
-		//}
-		int physPageNum = pageTable[virtPageNum].ppn;	// virtual page number is index???
-		int offset = Machine.processor().offsetFromAddress(vaddr);
-		int paddr = Machine.processor().makeAddress(physPageNum, offset);
+    /**
+     * Return the page held by a TLB entry, without reading the TLB. This process
+     * must be running.
+     *
+     * @param index the TLB entry.
+     * @return the page, or -1 if the entry is invalid.
+     */
+    protected int getTLBPage(int index) {
+        return tlbPages[index];
+    }
 
-		return paddr;
-	}
+    /**
+     * Return the translation for a page that the TLB may hold.
+     *
+     * @param vpn the virtual page number.
+     * @return the page's entry, or <tt>null</tt> if nothing is mapped there.
+     */
+    protected TranslationEntry getTranslation(int vpn) {
+        return (vpn >= 0 && vpn < numPages) ? pageTable[vpn] : null;
+    }
+
+    /**
+     * Kill this process after it touched a page that is not part of its address
+     * space, such as a guard page below the stack or a page past the end.
+     *
+     * @param vpn the page touched.
+     */
+    protected void handleUnmappedFault(int vpn) {
+        Lib.debug(dbgProcess, "UserProcess.handleException(), touched unmapped page " + vpn);
+        exit(statusKilled);
+    }
+
+    /**
+     * Test whether a page below <tt>numPages</tt> belongs to the program: it is
+     * in a section of the executable, on the stack, or the page of arguments.
+     * The other pages, in gaps between sections and below the stack, are never
+     * mapped, and a program that touches one is killed.
+     *
+     * @param vpn the virtual page number.
+     * @return <tt>true</tt> if the page is part of the address space.
+     */
+    protected boolean isProgramPage(int vpn) {
+        if (vpn >= stackBase && vpn < numPages)
+            return true;
+
+        for (int s = 0; s < coff.getNumSections(); s++) {
+            CoffSection section = coff.getSection(s);
+            if (vpn >= section.getFirstVPN() && vpn < section.getFirstVPN() + section.getLength())
+                return true;
+        }
+
+        return false;
+    }
 
     /**
      * Read a null-terminated string from this process's virtual memory. Read at
@@ -176,35 +312,7 @@ public class UserProcess {
      * @return the number of bytes successfully transferred.
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-
-
-		byte[] memory = Machine.processor().getMemory();
-
-		if(vaddr < 0 || vaddr >= numPages*pageSize) {
-			return 0;
-		}
-
-		int NumBytesTransf = 0;
-		//while () {
-		for (NumBytesTransf = 0; NumBytesTransf < length; NumBytesTransf++) {
-
-			int virtPageNum = Machine.processor().pageFromAddress(vaddr + NumBytesTransf );
-			if (virtPageNum < 0 || virtPageNum >=  numPages) {
-				break;
-			}
-			int paddr = translate(vaddr + NumBytesTransf);
-
-			if (paddr < 0) {
-				break;	// this might give some issues. remove checks in translate if not working
-			}
-
-			System.arraycopy(memory, paddr, data, offset + NumBytesTransf, 1);
-			pageTable[virtPageNum].used = true;
-			
-		}
-
-		return NumBytesTransf;
+        return copyVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -233,36 +341,117 @@ public class UserProcess {
      * @return the number of bytes successfully transferred.
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+        return copyVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Copy between this process's virtual memory and the specified array, one
+     * page at a time. Each page is translated once, and the part of it that lies
+     * in the range is copied with a single <tt>System.arraycopy()</tt>. The copy
+     * stops at the first page that <tt>lookupPage()</tt> refuses.
+     *
+     * @param vaddr  the first byte of virtual memory to transfer.
+     * @param data   the array to transfer to or from.
+     * @param offset the first byte of the array to transfer.
+     * @param length the number of bytes to transfer.
+     * @param write  <tt>true</tt> to copy from the array into memory,
+     *               <tt>false</tt> to copy from memory into the array.
+     * @return the number of bytes successfully transferred.
+     */
+    private int copyVirtualMemory(int vaddr, byte[] data, int offset, int length, boolean write) {
+        Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-		byte[] memory = Machine.processor().getMemory();
+        if (vaddr < 0)
+            return 0;
 
-		if(vaddr < 0 || vaddr >= numPages*pageSize) {
-			return 0;
-		}
+        byte[] memory = Machine.processor().getMemory();
 
-		int NumBytesTransf = 0;
-		//while () {
-		for (NumBytesTransf = 0; NumBytesTransf < length; NumBytesTransf++) {
+        int amount = 0;
+        while (amount < length) {
+            int address = vaddr + amount;
+            if (address < 0)
+                break;
 
-			int virtPageNum = Machine.processor().pageFromAddress(vaddr + NumBytesTransf );
-			if (virtPageNum < 0 || virtPageNum >=  numPages) {
-				break;
-			}
-			int paddr = translate(vaddr + NumBytesTransf);
+            int vpn = Processor.pageFromAddress(address);
+            TranslationEntry entry = lookupPage(vpn, write);
+            if (entry == null)
+                break;
 
-			if (paddr < 0) {
-				break;	// this might give some issues. remove checks in translate if not working
-			}
+            int pageOffset = Processor.offsetFromAddress(address);
+            int paddr = Processor.makeAddress(entry.ppn, pageOffset);
+            int run = Math.min(length - amount, pageSize - pageOffset);
 
-			System.arraycopy(data, offset + NumBytesTransf, memory, paddr, 1);
-			pageTable[virtPageNum].used = true;
-			//System.arraycopy ();
-			//NumBytesTransf++;
-		}
+            if (write)
+                System.arraycopy(data, offset + amount, memory, paddr, run);
+            else
+                System.arraycopy(memory, paddr, data, offset + amount, run);
 
-		return NumBytesTransf;
+            releasePage(vpn);
+            amount += run;
+        }
 
+        return amount;
+    }
+
+    /**
+     * Return the translation for a page that the kernel is about to access on
+     * behalf of this process, and mark the page used, and dirty if it is about to
+     * be written. Like the processor, this refuses pages that are not mapped, and
+     * writes to read-only pages. A write to a copy-on-write page first gives this
+     * process its own copy.
+     *
+     * <p>
+     * Subclasses that do not keep every page resident override this to bring the
+     * page into memory first, and to keep it there until <tt>releasePage()</tt>
+     * is called. Every successful call must be matched by a call to
+     * <tt>releasePage()</tt>.
+     *
+     * @param vpn   the virtual page to access.
+     * @param write <tt>true</tt> if the page is about to be written.
+     * @return the page's translation, or <tt>null</tt> if it may not be accessed.
+     */
+    protected TranslationEntry lookupPage(int vpn, boolean write) {
+        if (vpn < 0 || vpn >= numPages || pageTable[vpn] == null)
+            return null;
+
+        TranslationEntry entry = pageTable[vpn];
+        if (!entry.valid && !zeroFill(vpn))
+            return null;
+        if (write && copyOnWrite[vpn] && !breakCopyOnWrite(vpn))
+            return null;
+        if (write && entry.readOnly)
+            return null;
+
+        entry.used = true;
+        if (write)
+            entry.dirty = true;
+
+        return entry;
+    }
+
+    /**
+     * Test whether the kernel may access a page on behalf of this process,
+     * without bringing the page into memory or copying it. Used to check a whole
+     * buffer before starting an operation that cannot be undone.
+     *
+     * @param vpn   the virtual page.
+     * @param write <tt>true</tt> if the page will be written.
+     * @return <tt>true</tt> if <tt>lookupPage()</tt> will accept the page.
+     */
+    protected boolean isAccessible(int vpn, boolean write) {
+        if (vpn < 0 || vpn >= numPages || pageTable[vpn] == null)
+            return false;
+
+        return !write || !pageTable[vpn].readOnly || copyOnWrite[vpn];
+    }
+
+    /**
+     * Tell this process that the kernel has finished with a page returned by
+     * <tt>lookupPage()</tt>.
+     *
+     * @param vpn the virtual page that is no longer being accessed.
+     */
+    protected void releasePage(int vpn) {
     }
 
     /**
@@ -295,19 +484,26 @@ public class UserProcess {
             return false;
         }
         Lib.assertTrue(coff != null);
+        executableName = name;
 
-        // make sure the sections are contiguous and start at page 0
+        // sections may leave gaps between them, which are never mapped, but
+        // must not overlap
         numPages = 0;
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
-            Lib.assertTrue(section.getFirstVPN() == numPages);
-            if (section.getFirstVPN() != numPages) {
+            boolean overlaps = section.getFirstVPN() < 0;
+            for (int t = 0; t < s; t++) {
+                CoffSection other = coff.getSection(t);
+                if (section.getFirstVPN() < other.getFirstVPN() + other.getLength()
+                        && other.getFirstVPN() < section.getFirstVPN() + section.getLength())
+                    overlaps = true;
+            }
+            if (overlaps) {
                 coff.close();
-                Lib.debug(dbgProcess, "\tfragmented executable");
-                // Lib.assertTrue(false);
+                Lib.debug(dbgProcess, "\toverlapping sections");
                 return false;
             }
-            numPages += section.getLength();
+            numPages = Math.max(numPages, section.getFirstVPN() + section.getLength());
         }
 
         // make sure the argv array will fit in one page
@@ -328,20 +524,18 @@ public class UserProcess {
         // program counter initially points at the program entry point
         initialPC = coff.getEntryPoint();
 
-        // next comes the stack; stack pointer initially points to top of it
+        // next come the unmapped guard pages, so that a stack that overflows
+        // faults instead of overwriting the program's data, then the stack;
+        // stack pointer initially points to top of it
+        numPages += guardPages;
+        stackBase = numPages;
         numPages += stackPages;
         initialSP = numPages * pageSize;
 
         // and finally reserve 1 page for arguments
         numPages++;
 
-        Lib.assertTrue(numPages > 0);
-        pageTable = new TranslationEntry[numPages];
-        UserKernel.pageLock.acquire();
-        for (int i = 0; i < numPages; i++) {
-            pageTable[i] = new TranslationEntry(i, UserKernel.freePages.pop(), true, false, false, false);
-        }
-        UserKernel.pageLock.release();
+        copyOnWrite = new boolean[numPages];
 
         if (!loadSections())
             return false;
@@ -371,19 +565,46 @@ public class UserProcess {
      * If this returns successfully, the process will definitely be run (this is the
      * last step in process initialization that can fail).
      *
+     * <p>
+     * Only the pages with contents in the executable, and the page of arguments,
+     * are given frames here. Pages of uninitialized sections and of the stack
+     * start out invalid, and are given a zero-filled frame by
+     * <tt>zeroFill()</tt> when first touched, so a program only pays for the part
+     * of its stack and bss that it uses.
+     *
      * @return <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
         Lib.debug(dbgProcess, "UserProcess.loadSections()");
 
-        if (numPages > Machine.processor().getNumPhysPages()) {
+        Lib.assertTrue(numPages > 0);
+
+        pageTable = new TranslationEntry[numPages];
+        for (int i = 0; i < numPages; i++) {
+            if (isProgramPage(i))
+                pageTable[i] = new TranslationEntry(i, -1, false, false, false, false);
+        }
+
+        // the arguments page, then every page of an initialized section
+        int numLoaded = 1;
+        for (int s = 0; s < coff.getNumSections(); s++) {
+            if (coff.getSection(s).isInitialzed())
+                numLoaded += coff.getSection(s).getLength();
+        }
+
+        int[] frames = new int[numLoaded];
+        if (!UserKernel.frameAllocator.allocate(frames)) {
             coff.close();
             Lib.debug(dbgProcess, "\tinsufficient physical memory");
             return false;
         }
-        Lib.assertTrue(pageTable != null);
-        Lib.assertTrue(pageTable.length > 0);
+
+        pageTable[numPages - 1].ppn = frames[0];
+        pageTable[numPages - 1].valid = true;
+        Arrays.fill(Machine.processor().getMemory(), frames[0] * pageSize, (frames[0] + 1) * pageSize, (byte) 0);
+
         // load sections
+        int next = 1;
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
 
@@ -395,7 +616,11 @@ public class UserProcess {
                 if (section.isReadOnly()) {
                     pageTable[vpn].readOnly = true;
                 }
-                // for now, just assume virtual addresses=physical addresses
+                if (!section.isInitialzed())
+                    continue;
+
+                pageTable[vpn].ppn = frames[next++];
+                pageTable[vpn].valid = true;
                 section.loadPage(i, pageTable[vpn].ppn);
             }
         }
@@ -403,21 +628,163 @@ public class UserProcess {
         return true;
     }
 
+    /**
+     * Give a page that has not been touched yet a frame filled with zeros.
+     *
+     * @param vpn the page, which must not be valid.
+     * @return <tt>true</tt> if successful, or <tt>false</tt> if the page is
+     *         outside the address space or there is no free frame.
+     */
+    private boolean zeroFill(int vpn) {
+        if (vpn < 0 || vpn >= numPages || pageTable[vpn] == null)
+            return false;
+
+        TranslationEntry entry = pageTable[vpn];
+        Lib.assertTrue(!entry.valid);
+
+        int ppn = UserKernel.frameAllocator.allocate();
+        if (ppn == -1)
+            return false;
+
+        Arrays.fill(Machine.processor().getMemory(), ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+
+        entry.ppn = ppn;
+        entry.valid = true;
+
+        return true;
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
         Lib.debug(dbgProcess, "UserProcess.unloadSections()");
 
-        UserKernel.pageLock.acquire();
-
+        int[] frames = new int[numPages];
+        int numFrames = 0;
         for (int i = 0; i < numPages; i++) {
-            UserKernel.freePages.add(pageTable[i].ppn);
+            if (pageTable[i] != null && pageTable[i].valid)
+                frames[numFrames++] = pageTable[i].ppn;
+        }
+
+        UserKernel.frameAllocator.free(Arrays.copyOf(frames, numFrames));
+
+        closeCoff();
+    }
+
+    /**
+     * Give this process, which has just been created by <tt>fork()</tt>, a
+     * copy-on-write copy of its parent's address space. Every frame of the parent
+     * is shared with the child, and every writable page is made read-only in both
+     * processes and marked copy-on-write, so that neither sees the other's later
+     * writes. Pages the parent has not touched yet are left for each process to
+     * zero-fill on its own. The parent must be the current process.
+     *
+     * @param parent the process calling <tt>fork()</tt>.
+     * @return <tt>true</tt> if successful.
+     */
+    protected boolean copyAddressSpace(UserProcess parent) {
+        copyProgram(parent);
+
+        pageTable = new TranslationEntry[numPages];
+        int[] frames = new int[numPages];
+        int numFrames = 0;
+
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            TranslationEntry entry = parent.pageTable[vpn];
+            if (entry == null)
+                continue;
+            if (!entry.valid) {
+                pageTable[vpn] = new TranslationEntry(vpn, -1, false, entry.readOnly, false, false);
+                continue;
+            }
+
+            if (!entry.readOnly) {
+                entry.readOnly = true;
+                parent.copyOnWrite[vpn] = true;
+            }
+
+            pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, true, true, false, false);
+            copyOnWrite[vpn] = parent.copyOnWrite[vpn];
+            frames[numFrames++] = entry.ppn;
         }
 
-        UserKernel.pageLock.release();
+        UserKernel.frameAllocator.share(Arrays.copyOf(frames, numFrames));
+
+        // the parent's writable pages may be in the TLB
+        if (Machine.processor().hasTLB())
+            parent.restoreState();
+
+        return true;
+    }
 
-        coff.close();
+    /**
+     * Copy everything about the program a process is running, other than its
+     * address space, into this process, which has just been created by
+     * <tt>fork()</tt>. The two processes share the executable.
+     *
+     * @param parent the process calling <tt>fork()</tt>.
+     */
+    protected void copyProgram(UserProcess parent) {
+        coff = parent.coff;
+        executableName = parent.executableName;
+        numPages = parent.numPages;
+        stackBase = parent.stackBase;
+        initialPC = parent.initialPC;
+        initialSP = parent.initialSP;
+        argc = parent.argc;
+        argv = parent.argv;
+
+        Integer users = coffUsers.get(coff);
+        coffUsers.put(coff, (users == null) ? 2 : users + 1);
+
+        copyOnWrite = new boolean[numPages];
+    }
+
+    /**
+     * Close this process's executable, unless a process forked from it, or the
+     * one it was forked from, is still using it.
+     */
+    protected void closeCoff() {
+        Integer users = coffUsers.remove(coff);
+        if (users != null && users > 2)
+            coffUsers.put(coff, users - 1);
+        else if (users == null)
+            coff.close();
+    }
+
+    /**
+     * Give this process its own copy of a copy-on-write page, so that it can be
+     * written. If no other process still shares the page's frame, the frame is
+     * simply made writable.
+     *
+     * @param vpn the copy-on-write page.
+     * @return <tt>true</tt> if successful, or <tt>false</tt> if there was no
+     *         free frame for the copy.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+        TranslationEntry entry = pageTable[vpn];
+        Lib.assertTrue(copyOnWrite[vpn] && entry.readOnly);
+
+        if (UserKernel.frameAllocator.getReferenceCount(entry.ppn) > 1) {
+            int ppn = UserKernel.frameAllocator.allocate();
+            if (ppn == -1)
+                return false;
+
+            byte[] memory = Machine.processor().getMemory();
+            System.arraycopy(memory, entry.ppn * pageSize, memory, ppn * pageSize, pageSize);
+
+            UserKernel.frameAllocator.free(entry.ppn);
+            entry.ppn = ppn;
+        }
+
+        entry.readOnly = false;
+        copyOnWrite[vpn] = false;
+
+        if (Machine.processor().hasTLB())
+            restoreState();
+
+        return true;
     }
 
     /**
@@ -432,6 +799,13 @@ public class UserProcess {
 
         Processor processor = Machine.processor();
 
+        // a forked process carries on from its parent's fork() call
+        if (forkRegisters != null) {
+            for (int i = 0; i < Processor.numUserRegisters; i++)
+                processor.writeRegister(i, forkRegisters[i]);
+            return;
+        }
+
         // by default, everything's 0
         for (int i = 0; i < processor.numUserRegisters; i++)
             processor.writeRegister(i, 0);
@@ -452,8 +826,8 @@ public class UserProcess {
         if (UserKernel.rootProcess != this)
             return 0;
 
-        Machine.halt();
-        Lib.assertNotReached("Machine.halt() did not halt machine!");
+        Kernel.kernel.terminate();
+        Lib.assertNotReached("Kernel.terminate() did not halt machine!");
         return 0;
     }
 
@@ -471,109 +845,637 @@ public class UserProcess {
 
         boolean result = fd.createFile(name);
 
-        if (result)
-            return fd.id;
-        else
-            return -1;
+        if (result)
+            return fd.id;
+        else
+            return -1;
+    }
+
+    /**
+     * Handle the open() system call.
+     * 
+     * @param fileNameAddress
+     * @return
+     */
+    private int handleOpen(int fileNameAddress) {
+        String name = readVirtualMemoryString(fileNameAddress, maxFileNameLength);
+        MyFileDescriptor fd = getFileDescriptor();
+        if (fd == null)
+            return -1;
+
+        boolean result = fd.openFile(name);
+
+        if (result)
+            return fd.id;
+        else
+            return -1;
+    }
+
+    /**
+     * Handle read() system call.
+     * 
+     * @param descriptorId
+     * @param buffeAddress
+     * @param size
+     * @return
+     */
+    private int handleRead(int descriptorId, int bufferAddress, int size) {
+        MyFileDescriptor fd = getFileDescriptor(descriptorId);
+        if (fd == null)
+            return -1;
+
+        if (isMapped(descriptorId)) {
+            Lib.debug(dbgProcess, "handleRead() - file is mapped");
+            return -1;
+        }
+
+        if (size < 0) {
+            Lib.debug(dbgProcess, "handleRead() - size of buffer is zero");
+            return -1;
+        }
+
+        int readLength = transferFile(fd, bufferAddress, size, false);
+        if (readLength == -1) {
+            Lib.debug(dbgProcess, "handleRead() - transferFile() returned -1");
+            return -1;
+        }
+
+        return readLength;
+    }
+
+    /**
+     * Handle write() system call.
+     * 
+     * @param descriptorId
+     * @param buffer
+     * @param size
+     * @return
+     */
+    private int handleWrite(int descriptorId, int bufferAddress, int size) {
+        MyFileDescriptor fd = getFileDescriptor(descriptorId);
+        if (fd == null)
+            return -1;
+
+        if (isMapped(descriptorId)) {
+            Lib.debug(dbgProcess, "handleWrite() - file is mapped");
+            return -1;
+        }
+
+        if (size < 0) {
+            Lib.debug(dbgProcess, "handleWrite() - size of buffer is zero");
+            return -1;
+        }
+
+        int writeLength = transferFile(fd, bufferAddress, size, true);
+        if (writeLength == -1) {
+            Lib.debug(dbgProcess, "handleWrite() - transferFile() returned -1");
+            return -1;
+        }
+
+        return writeLength;
+    }
+
+    /**
+     * Transfer data between an open file and this process's virtual memory, for
+     * the read() and write() syscalls.
+     *
+     * <p>
+     * Where the buffer is backed by physically contiguous frames, the file reads
+     * or writes main memory directly, with no intermediate copy, up to
+     * <tt>ioBufferSize</tt> bytes at a time. The frames are held with
+     * <tt>lookupPage()</tt> for the duration of the file operation. Where the
+     * contiguous part is shorter than that, the data is staged through
+     * <tt>ioBuffer</tt> instead, so that a fragmented buffer does not turn into
+     * one file operation per page. Either way, the memory used does not depend on
+     * <i>length</i>.
+     *
+     * <p>
+     * A pipe is always given main memory directly, but one page at a time. A
+     * pipe operation can block for as long as the other end is idle, and must
+     * not keep more than one frame pinned meanwhile.
+     *
+     * @param fd      the file to transfer to or from.
+     * @param vaddr   the first byte of the user buffer.
+     * @param length  the number of bytes to transfer.
+     * @param toFile  <tt>true</tt> to write the buffer to the file,
+     *                <tt>false</tt> to read the file into the buffer.
+     * @return the number of bytes transferred, or -1 if part of the buffer is
+     *         invalid (or read-only, for a read), or nothing was transferred
+     *         because the file reported an error or a page of the buffer could
+     *         not be brought into memory.
+     */
+    private int transferFile(MyFileDescriptor fd, int vaddr, int length, boolean toFile) {
+        boolean toMemory = !toFile;
+
+        if (length == 0)
+            return 0;
+
+        // fail before touching the file if any part of the buffer is bad
+        if (vaddr < 0 || vaddr + length < 0)
+            return -1;
+        for (int vpn = Processor.pageFromAddress(vaddr); vpn <= Processor.pageFromAddress(vaddr + length - 1); vpn++) {
+            if (!isAccessible(vpn, toMemory))
+                return -1;
+        }
+
+        byte[] memory = Machine.processor().getMemory();
+
+        int amount = 0;
+        while (amount < length) {
+            int address = vaddr + amount;
+            int remaining = length - amount;
+            int firstVPN = Processor.pageFromAddress(address);
+
+            TranslationEntry entry = lookupPage(firstVPN, toMemory);
+            if (entry == null)
+                return (amount == 0) ? -1 : amount;
+
+            int paddr = Processor.makeAddress(entry.ppn, Processor.offsetFromAddress(address));
+
+            // extend the run across pages that are also adjacent in memory
+            int run = Math.min(remaining, pageSize - Processor.offsetFromAddress(address));
+            int numHeld = 1;
+            while (run < remaining && run < ioBufferSize && !fd.isPipe()) {
+                TranslationEntry next = lookupPage(firstVPN + numHeld, toMemory);
+                if (next == null)
+                    break;
+                if (next.ppn != entry.ppn + numHeld) {
+                    releasePage(firstVPN + numHeld);
+                    break;
+                }
+
+                numHeld++;
+                run = Math.min(remaining, run + pageSize);
+            }
+
+            int result;
+            if (run == remaining || run >= ioBufferSize || fd.isPipe()) {
+                result = toFile ? fd.writeFile(memory, paddr, run) : fd.readFile(memory, paddr, run);
+
+                for (int i = 0; i < numHeld; i++)
+                    releasePage(firstVPN + i);
+            } else {
+                for (int i = 0; i < numHeld; i++)
+                    releasePage(firstVPN + i);
+
+                if (ioBuffer == null)
+                    ioBuffer = new byte[ioBufferSize];
+
+                // a page can still be refused here if memory has run out
+                run = Math.min(remaining, ioBufferSize);
+                if (toFile) {
+                    run = readVirtualMemory(address, ioBuffer, 0, run);
+                    if (run == 0)
+                        return (amount == 0) ? -1 : amount;
+                    result = fd.writeFile(ioBuffer, 0, run);
+                } else {
+                    result = fd.readFile(ioBuffer, 0, run);
+                    if (result > 0) {
+                        int copied = writeVirtualMemory(address, ioBuffer, 0, result);
+                        if (copied < result)
+                            return (amount + copied == 0) ? -1 : amount + copied;
+                    }
+                }
+            }
+
+            if (result == -1)
+                return (amount == 0) ? -1 : amount;
+
+            amount += result;
+            if (result < run)
+                break;
+        }
+
+        return amount;
+    }
+
+    /**
+     * Handle the readv() and writev() system calls, which read into or write
+     * from several buffers at once. Every buffer is checked before the file is
+     * touched. The buffers are then gathered into, or scattered from,
+     * <tt>ioBuffer</tt>, so that each <tt>ioBufferSize</tt> bytes of them take
+     * one file operation however many buffers they span. A single buffer goes
+     * through <tt>transferFile()</tt> as for read() and write().
+     *
+     * @param descriptorId the file to transfer to or from.
+     * @param iovAddress   the address of the array of buffers, each a pointer
+     *                     and a length.
+     * @param iovCount     the number of buffers.
+     * @param toFile       <tt>true</tt> for writev(), <tt>false</tt> for
+     *                     readv().
+     * @return the number of bytes transferred, or -1 if a buffer is invalid, or
+     *         nothing was transferred because the file reported an error or a
+     *         page of a buffer could not be brought into memory.
+     */
+    private int handleVector(int descriptorId, int iovAddress, int iovCount, boolean toFile) {
+        MyFileDescriptor fd = getFileDescriptor(descriptorId);
+        if (fd == null || isMapped(descriptorId))
+            return -1;
+
+        if (iovCount < 0 || iovCount > maxIovecs)
+            return -1;
+
+        byte[] iov = new byte[iovCount * 2 * SIZE_OF_INT_IN_BYTES];
+        if (readVirtualMemory(iovAddress, iov) != iov.length)
+            return -1;
+
+        int[] bases = new int[iovCount], lengths = new int[iovCount];
+        long total = 0;
+        for (int i = 0; i < iovCount; i++) {
+            bases[i] = Lib.bytesToInt(iov, 8 * i);
+            lengths[i] = Lib.bytesToInt(iov, 8 * i + 4);
+            if (lengths[i] < 0 || bases[i] < 0 || bases[i] + lengths[i] < 0)
+                return -1;
+
+            for (int vpn = Processor.pageFromAddress(bases[i]); lengths[i] > 0
+                    && vpn <= Processor.pageFromAddress(bases[i] + lengths[i] - 1); vpn++) {
+                if (!isAccessible(vpn, !toFile))
+                    return -1;
+            }
+
+            total += lengths[i];
+        }
+        if (total > Integer.MAX_VALUE)
+            return -1;
+
+        if (iovCount == 1)
+            return transferFile(fd, bases[0], lengths[0], toFile);
+
+        if (ioBuffer == null)
+            ioBuffer = new byte[ioBufferSize];
+
+        // the buffer, and the offset in it, where the next chunk starts
+        int index = 0, offset = 0;
+        int amount = 0;
+        while (amount < total) {
+            int chunk = (int) Math.min(total - amount, ioBufferSize);
+
+            // a page can still be refused here if memory has run out
+            int result;
+            boolean refused = false;
+            if (toFile) {
+                int filled = 0;
+                for (; filled < chunk; index++, offset = 0) {
+                    int n = Math.min(lengths[index] - offset, chunk - filled);
+                    int copied = readVirtualMemory(bases[index] + offset, ioBuffer, filled, n);
+                    filled += copied;
+                    offset += copied;
+                    if (copied < n) {
+                        refused = true;
+                        break;
+                    }
+                    if (offset < lengths[index])
+                        break;
+                }
+
+                if (filled == 0)
+                    return (amount == 0) ? -1 : amount;
+
+                chunk = filled;
+                result = fd.writeFile(ioBuffer, 0, chunk);
+            } else {
+                result = fd.readFile(ioBuffer, 0, chunk);
+
+                for (int placed = 0; placed < result; index++, offset = 0) {
+                    int n = Math.min(lengths[index] - offset, result - placed);
+                    int copied = writeVirtualMemory(bases[index] + offset, ioBuffer, placed, n);
+                    placed += copied;
+                    offset += copied;
+                    if (copied < n) {
+                        amount += placed;
+                        return (amount == 0) ? -1 : amount;
+                    }
+                    if (offset < lengths[index])
+                        break;
+                }
+            }
+
+            if (result == -1)
+                return (amount == 0) ? -1 : amount;
+
+            amount += result;
+            if (result < chunk || refused)
+                break;
+        }
+
+        UserKernel.numVectorCalls++;
+        UserKernel.numVectorBuffers += iovCount;
+
+        return amount;
+    }
+
+    /**
+     * Handle the sendfile() system call, which copies from one open file to
+     * another inside the kernel. The data never enters this process's memory:
+     * it is read into <tt>sendfileBuffer</tt> and written out from there,
+     * <tt>sendfileBufferSize</tt> bytes per pair of file operations.
+     *
+     * @param outId the descriptor to write to.
+     * @param inId  the descriptor to read from.
+     * @param count the most bytes to copy.
+     * @return the number of bytes copied, which is less than <i>count</i> only
+     *         at the end of the input or after a short read from a stream, or
+     *         -1 if a file reported an error before anything was copied.
+     */
+    private int handleSendfile(int outId, int inId, int count) {
+        MyFileDescriptor out = getFileDescriptor(outId);
+        MyFileDescriptor in = getFileDescriptor(inId);
+        if (out == null || in == null || isMapped(outId) || isMapped(inId) || count < 0)
+            return -1;
+
+        if (sendfileBuffer == null)
+            sendfileBuffer = new byte[sendfileBufferSize];
+
+        int amount = 0;
+        while (amount < count) {
+            int chunk = Math.min(count - amount, sendfileBufferSize);
+
+            int read = in.readFile(sendfileBuffer, 0, chunk);
+            if (read == -1)
+                return (amount == 0) ? -1 : amount;
+            if (read == 0)
+                break;
+
+            if (out.writeFile(sendfileBuffer, 0, read) == -1)
+                return (amount == 0) ? -1 : amount;
+
+            amount += read;
+            if (read < chunk)
+                break;
+        }
+
+        UserKernel.numSendfileCalls++;
+        UserKernel.numSendfileBytes += amount;
+
+        return amount;
+    }
+
+    /**
+     * Handle close() sytem call.
+     * 
+     * @param descriptorId
+     * @return
+     */
+    private int handleClose(int descriptorId) {
+        MyFileDescriptor fd = getFileDescriptor(descriptorId);
+        if (fd == null)
+            return -1;
+
+        if (isMapped(descriptorId))
+            unmapFile(descriptorId);
+
+        if (fd.closeFile()) {
+            // the descriptor may still be open in a process forked from this one
+            descriptors[descriptorId] = null;
+            return 0;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Handle the mmap() system call, which maps an open file into memory. Mapped
+     * pages must be read from the file when they are first touched, which needs
+     * demand paging, so this always fails here; <tt>VMProcess</tt> overrides it.
+     *
+     * @param descriptorId the file to map.
+     * @param address      the page-aligned virtual address to map it at.
+     * @return the length of the file, or -1 if it could not be mapped.
+     */
+    protected int handleMmap(int descriptorId, int address) {
+        return -1;
+    }
+
+    /**
+     * Handle the shmget() system call, which finds or creates a shared memory
+     * segment. Segments are mapped by several processes at once, outside their
+     * page tables' program pages, which needs the sparse page tables of
+     * <tt>VMProcess</tt>, so this always fails here.
+     *
+     * @param key  the key identifying the segment.
+     * @param size the size of the segment, in bytes.
+     * @return the segment's ID, or -1 if it could not be found or created.
+     */
+    protected int handleShmget(int key, int size) {
+        return -1;
+    }
+
+    /**
+     * Handle the shmat() system call, which maps a shared memory segment into
+     * this process's memory. Always fails here; see <tt>handleShmget()</tt>.
+     *
+     * @param id      the segment's ID.
+     * @param address the page-aligned virtual address to map it at.
+     * @return <i>address</i>, or -1 if the segment could not be mapped.
+     */
+    protected int handleShmat(int id, int address) {
+        return -1;
+    }
+
+    /**
+     * Handle the shmdt() system call, which removes a mapping made by
+     * <tt>shmat()</tt>. Always fails here; see <tt>handleShmget()</tt>.
+     *
+     * @param address the address the segment is mapped at.
+     * @return 0, or -1 if no segment is mapped there.
+     */
+    protected int handleShmdt(int address) {
+        return -1;
     }
 
     /**
-     * Handle the open() system call.
-     * 
-     * @param fileNameAddress
-     * @return
+     * Test whether an open file is mapped into this process's memory, in which
+     * case read() and write() on it fail until it is closed.
+     *
+     * @param descriptorId the file descriptor.
+     * @return <tt>true</tt> if the file is mapped.
      */
-    private int handleOpen(int fileNameAddress) {
-        String name = readVirtualMemoryString(fileNameAddress, maxFileNameLength);
-        MyFileDescriptor fd = getFileDescriptor();
-        if (fd == null)
-            return -1;
+    protected boolean isMapped(int descriptorId) {
+        return false;
+    }
 
-        boolean result = fd.openFile(name);
+    /**
+     * Remove the mapping of a file that is being closed, writing any pages of it
+     * that have changed back to the file.
+     *
+     * @param descriptorId the mapped file's descriptor.
+     */
+    protected void unmapFile(int descriptorId) {
+    }
 
-        if (result)
-            return fd.id;
-        else
-            return -1;
+    /**
+     * Note that a file has been created, written or removed, so that nothing
+     * the kernel keeps from its old contents is used again.
+     *
+     * @param name the name of the file.
+     */
+    protected void fileChanged(String name) {
     }
 
     /**
-     * Handle read() system call.
-     * 
-     * @param descriptorId
-     * @param buffeAddress
-     * @param size
-     * @return
+     * Handle the pipe() system call, which opens both ends of a new pipe.
+     *
+     * @param fdsAddress the address of two ints, which receive the descriptors
+     *                   of the read end and the write end.
+     * @return 0, or -1 if the descriptors could not be allocated or stored.
      */
-    private int handleRead(int descriptorId, int bufferAddress, int size) {
-        MyFileDescriptor fd = getFileDescriptor(descriptorId);
-        if (fd == null)
+    private int handlePipe(int fdsAddress) {
+        if (!isAccessible(Processor.pageFromAddress(fdsAddress), true)
+                || !isAccessible(Processor.pageFromAddress(fdsAddress + 2 * SIZE_OF_INT_IN_BYTES - 1), true))
             return -1;
 
-        if (size < 0) {
-            Lib.debug(dbgProcess, "handleRead() - size of buffer is zero");
+        Pipe pipe = new Pipe(pipeSize);
+
+        MyFileDescriptor readFd = getFileDescriptor();
+        if (readFd == null)
             return -1;
-        }
+        readFd.setAsPipe(pipe.getReadEnd());
 
-        byte[] data = new byte[size];
-        int readLength = fd.readFile(data, 0, size);
-        if (readLength == -1) {
-            Lib.debug(dbgProcess, "handleRead() - readFile() returned -1");
+        MyFileDescriptor writeFd = getFileDescriptor();
+        if (writeFd == null) {
+            readFd.closeFile();
+            return -1;
+        }
+        writeFd.setAsPipe(pipe.getWriteEnd());
+
+        byte[] fds = new byte[2 * SIZE_OF_INT_IN_BYTES];
+        Lib.bytesFromInt(fds, 0, readFd.id);
+        Lib.bytesFromInt(fds, SIZE_OF_INT_IN_BYTES, writeFd.id);
+        if (writeVirtualMemory(fdsAddress, fds) != fds.length) {
+            readFd.closeFile();
+            writeFd.closeFile();
             return -1;
         }
 
-        return writeVirtualMemory(bufferAddress, data, 0, readLength);
+        UserKernel.numPipes++;
+        return 0;
     }
 
     /**
-     * Handle write() system call.
-     * 
-     * @param descriptorId
-     * @param buffer
-     * @param size
-     * @return
+     * Handle the ring_setup() system call, which registers a submission ring
+     * and a completion ring in this process's memory, so that many requests can
+     * be made with one <tt>ring_enter()</tt>. The rings follow a header of four
+     * ints, the submission and completion heads and tails:
+     *
+     * <pre>
+     * header      sqHead, sqTail, cqHead, cqTail
+     * entries x   opcode, fd, address, length, userData
+     * entries x   userData, result
+     * </pre>
+     *
+     * The heads and tails count entries from zero and are never wrapped; the
+     * slot of entry <i>i</i> is <i>i</i> mod <i>entries</i>. The kernel
+     * clears the header and from then on only advances the submission head and
+     * the completion tail.
+     *
+     * @param address the address of the header, which must be word-aligned.
+     * @param entries the number of entries in each ring, a power of two.
+     * @return 0, or -1 if the rings are not all in writable memory.
      */
-    private int handleWrite(int descriptorId, int bufferAddress, int size) {
-        MyFileDescriptor fd = getFileDescriptor(descriptorId);
-        if (fd == null)
-            return -1;
-
-        if (size < 0) {
-            Lib.debug(dbgProcess, "handleWrite() - size of buffer is zero");
+    private int handleRingSetup(int address, int entries) {
+        if (entries <= 0 || entries > maxRingEntries || (entries & (entries - 1)) != 0)
             return -1;
-        }
 
-        byte[] data = new byte[size];
-        int readLength = readVirtualMemory(bufferAddress, data);
-        if (readLength == -1) {
-            Lib.debug(dbgProcess, "handleWrite() - readVirtualMemory() failed");
+        int size = ringHeaderSize + entries * (ringRequestSize + ringCompletionSize);
+        if (address < 0 || (address & (SIZE_OF_INT_IN_BYTES - 1)) != 0 || address + size < 0)
             return -1;
+        for (int vpn = Processor.pageFromAddress(address); vpn <= Processor.pageFromAddress(address + size - 1); vpn++) {
+            if (!isAccessible(vpn, true))
+                return -1;
         }
 
-        int writeLength = fd.writeFile(data, 0, size);
-        if (writeLength == -1) {
-            Lib.debug(dbgProcess, "handleWrite() - writeFile() returned -1");
+        if (writeVirtualMemory(address, new byte[ringHeaderSize]) != ringHeaderSize)
             return -1;
-        }
 
-        return writeLength;
+        ringAddress = address;
+        ringEntries = entries;
+        return 0;
     }
 
     /**
-     * Handle close() sytem call.
-     * 
-     * @param descriptorId
-     * @return
+     * Handle the ring_enter() system call. Requests are taken from the
+     * submission ring in order, each is carried out as the matching syscall
+     * would be, and its result is put in the completion ring, until
+     * <i>count</i> requests have been handled, the submission ring is empty, or
+     * the completion ring is full. A request that blocks, such as a read from
+     * an empty pipe, blocks the rest.
+     *
+     * @param count the most requests to handle.
+     * @return the number of requests handled, or -1 if no ring is registered
+     *         or it can no longer be read.
      */
-    private int handleClose(int descriptorId) {
-        MyFileDescriptor fd = getFileDescriptor(descriptorId);
-        if (fd == null)
+    private int handleRingEnter(int count) {
+        if (ringAddress == -1 || count < 0)
             return -1;
 
-        if (fd.closeFile())
-            return 0;
+        byte[] header = new byte[ringHeaderSize];
+        if (readVirtualMemory(ringAddress, header) != ringHeaderSize)
+            return -1;
 
-        return -1;
+        int sqHead = Lib.bytesToInt(header, 0);
+        int sqTail = Lib.bytesToInt(header, 4);
+        int cqHead = Lib.bytesToInt(header, 8);
+        int cqTail = Lib.bytesToInt(header, 12);
+
+        int requests = ringAddress + ringHeaderSize;
+        int completions = requests + ringEntries * ringRequestSize;
+
+        byte[] request = new byte[ringRequestSize];
+        byte[] completion = new byte[ringCompletionSize];
+
+        int handled = 0;
+        while (handled < count && sqHead != sqTail && cqTail - cqHead < ringEntries) {
+            int slot = sqHead & (ringEntries - 1);
+            if (readVirtualMemory(requests + slot * ringRequestSize, request) != ringRequestSize)
+                break;
+
+            int opcode = Lib.bytesToInt(request, 0);
+            int descriptorId = Lib.bytesToInt(request, 4);
+            int address = Lib.bytesToInt(request, 8);
+            int length = Lib.bytesToInt(request, 12);
+
+            int result;
+            switch (opcode) {
+            case ringRead:
+                result = handleRead(descriptorId, address, length);
+                break;
+            case ringWrite:
+                result = handleWrite(descriptorId, address, length);
+                break;
+            case ringOpen:
+                result = handleOpen(address);
+                break;
+            case ringClose:
+                result = handleClose(descriptorId);
+                break;
+            default:
+                Lib.debug(dbgProcess, "handleRingEnter() - unknown opcode " + opcode);
+                result = -1;
+                break;
+            }
+
+            System.arraycopy(request, 16, completion, 0, SIZE_OF_INT_IN_BYTES);
+            Lib.bytesFromInt(completion, 4, result);
+            slot = cqTail & (ringEntries - 1);
+            if (writeVirtualMemory(completions + slot * ringCompletionSize, completion) != ringCompletionSize)
+                break;
+
+            sqHead++;
+            cqTail++;
+            handled++;
+        }
+
+        // the process owns the submission tail and the completion head
+        byte[] word = new byte[SIZE_OF_INT_IN_BYTES];
+        Lib.bytesFromInt(word, 0, sqHead);
+        writeVirtualMemory(ringAddress, word);
+        Lib.bytesFromInt(word, 0, cqTail);
+        writeVirtualMemory(ringAddress + 12, word);
+
+        UserKernel.numRingEnters++;
+        UserKernel.numRingRequests += handled;
+
+        return handled;
     }
 
     /**
@@ -601,8 +1503,72 @@ public class UserProcess {
         return 0;
     }
 
+    /**
+     * Handle the futex_wait() system call. The page holding the futex word
+     * stays pinned until the waiter has been added, so that the value checked is
+     * the one a waker sees.
+     *
+     * @param address  the virtual address of the futex word.
+     * @param expected the value the caller expects the futex word to hold.
+     * @return 0 once woken, or -1 if the word did not hold <i>expected</i> or
+     *         <i>address</i> is invalid.
+     */
+    private int handleFutexWait(int address, int expected) {
+        if ((address & (SIZE_OF_INT_IN_BYTES - 1)) != 0)
+            return -1;
+
+        // make sure the page is in memory, zero-filling it if it is untouched
+        int vpn = Processor.pageFromAddress(address);
+        TranslationEntry entry = lookupPage(vpn, false);
+        if (entry == null)
+            return -1;
+
+        int paddr = Processor.makeAddress(entry.ppn, Processor.offsetFromAddress(address));
+        FutexTable.Waiter waiter = UserKernel.futexTable.enqueue(getFutexKey(address), paddr, expected);
+        releasePage(vpn);
+
+        if (waiter == null)
+            return -1;
+
+        waiter.sleep();
+        return 0;
+    }
+
+    /**
+     * Handle the futex_wake() system call.
+     *
+     * @param address the virtual address of the futex word.
+     * @param count   the maximum number of sleepers to wake.
+     * @return the number of sleepers woken, or -1 if <i>address</i> is invalid.
+     */
+    private int handleFutexWake(int address, int count) {
+        if ((address & (SIZE_OF_INT_IN_BYTES - 1)) != 0 || count < 0)
+            return -1;
+
+        if (address < 0 || !isAccessible(Processor.pageFromAddress(address), false))
+            return -1;
+
+        return UserKernel.futexTable.wake(getFutexKey(address), count);
+    }
+
+    /**
+     * Return the key identifying the futex at a virtual address. A word in this
+     * process's own memory is keyed by the process and its address. Subclasses
+     * that map memory shared with other processes override this to key such
+     * words by what they share.
+     *
+     * @param vaddr the virtual address of the futex word.
+     * @return the key.
+     */
+    protected FutexTable.Key getFutexKey(int vaddr) {
+        return new FutexTable.Key(this, vaddr);
+    }
+
     private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2, syscallJoin = 3, syscallCreate = 4,
-            syscallOpen = 5, syscallRead = 6, syscallWrite = 7, syscallClose = 8, syscallUnlink = 9;
+            syscallOpen = 5, syscallRead = 6, syscallWrite = 7, syscallClose = 8, syscallUnlink = 9,
+            syscallMmap = 10, syscallFutexWait = 13, syscallFutexWake = 14, syscallFork = 15, syscallPipe = 16,
+            syscallShmget = 17, syscallShmat = 18, syscallShmdt = 19, syscallRingSetup = 20, syscallRingEnter = 21,
+            syscallReadv = 22, syscallWritev = 23, syscallSendfile = 24;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -656,6 +1622,58 @@ public class UserProcess {
      * <td>9</td>
      * <td><tt>int  unlink(char *name);</tt></td>
      * </tr>
+     * <tr>
+     * <td>10</td>
+     * <td><tt>int  mmap(int fd, char *address);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>13</td>
+     * <td><tt>int  futex_wait(int *addr, int expected);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>14</td>
+     * <td><tt>int  futex_wake(int *addr, int count);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>15</td>
+     * <td><tt>int  fork();</tt></td>
+     * </tr>
+     * <tr>
+     * <td>16</td>
+     * <td><tt>int  pipe(int fds[2]);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>17</td>
+     * <td><tt>int  shmget(int key, int size);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>18</td>
+     * <td><tt>char *shmat(int id, char *address);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>19</td>
+     * <td><tt>int  shmdt(char *address);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>20</td>
+     * <td><tt>int  ring_setup(void *ring, int entries);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>21</td>
+     * <td><tt>int  ring_enter(int count);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>22</td>
+     * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>23</td>
+     * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);</tt></td>
+     * </tr>
+     * <tr>
+     * <td>24</td>
+     * <td><tt>int  sendfile(int outFd, int inFd, int count);</tt></td>
+     * </tr>
      * </table>
      *
      * @param syscall the syscall number.
@@ -688,6 +1706,9 @@ public class UserProcess {
         case syscallUnlink:
             return handleUnlink(a0);
 
+        case syscallMmap:
+            return handleMmap(a0, a1);
+
         case syscallExit:
             return exit(a0);
 
@@ -697,6 +1718,42 @@ public class UserProcess {
         case syscallJoin:
             return join(a0, a1);
 
+        case syscallFutexWait:
+            return handleFutexWait(a0, a1);
+
+        case syscallFutexWake:
+            return handleFutexWake(a0, a1);
+
+        case syscallFork:
+            return handleFork();
+
+        case syscallPipe:
+            return handlePipe(a0);
+
+        case syscallShmget:
+            return handleShmget(a0, a1);
+
+        case syscallShmat:
+            return handleShmat(a0, a1);
+
+        case syscallShmdt:
+            return handleShmdt(a0);
+
+        case syscallRingSetup:
+            return handleRingSetup(a0, a1);
+
+        case syscallRingEnter:
+            return handleRingEnter(a0);
+
+        case syscallReadv:
+            return handleVector(a0, a1, a2, false);
+
+        case syscallWritev:
+            return handleVector(a0, a1, a2, true);
+
+        case syscallSendfile:
+            return handleSendfile(a0, a1, a2);
+
         default:
             Lib.debug(dbgProcess, "Unknown syscall " + syscall);
             Lib.assertNotReached("Unknown system call: " + syscall);
@@ -731,7 +1788,7 @@ public class UserProcess {
         Integer istatus = Statuses.get(child.processID);
         hmLock.release();
 
-        if (istatus == -9999) {
+        if (istatus == statusKilled) {
             return 0; // unhandle exception
         }
 
@@ -774,7 +1831,7 @@ public class UserProcess {
         childProcesses.clear();
         closeAllFileDescriptors();
 
-        if (this.processID == 0) {
+        if (this == UserKernel.rootProcess) {
             Kernel.kernel.terminate(); // exit the root process
         }
 
@@ -785,6 +1842,73 @@ public class UserProcess {
         return status;
     }
 
+    /**
+     * Handle the fork() system call. The child is a copy of this process, running
+     * the same program, with a copy-on-write copy of its memory and the same open
+     * files, and returns 0 from the same call to fork().
+     *
+     * @return the child's process ID, or -1 if it could not be created.
+     */
+    private int handleFork() {
+        UserProcess child = UserProcess.newUserProcess();
+        if (!child.copyAddressSpace(this)) {
+            discardChild(child);
+            return -1;
+        }
+
+        Processor processor = Machine.processor();
+
+        child.forkRegisters = new int[Processor.numUserRegisters];
+        for (int i = 0; i < Processor.numUserRegisters; i++)
+            child.forkRegisters[i] = processor.readRegister(i);
+
+        // as if the child had returned from the syscall itself
+        child.forkRegisters[Processor.regV0] = 0;
+        child.forkRegisters[Processor.regPC] = child.forkRegisters[Processor.regNextPC];
+        child.forkRegisters[Processor.regNextPC] += 4;
+
+        for (int i = 0; i < fileDescriptorLimit; i++) {
+            MyFileDescriptor fd = descriptors[i];
+            if (fd == null || !fd.isOpen())
+                continue;
+
+            if (child.descriptors[i] != null)
+                child.descriptors[i].closeFile();
+
+            fd.share();
+            child.descriptors[i] = fd;
+        }
+
+        this.childProcesses.add(child);
+        child.parentProcess = this;
+
+        child.ringAddress = ringAddress;
+        child.ringEntries = ringEntries;
+
+        child.thread = new UThread(child);
+        child.thread.setName(executableName).fork();
+
+        return child.processID;
+    }
+
+    /**
+     * Tear down a process created by <tt>fork()</tt> that could not be given an
+     * address space, and so never ran. Its console descriptors are closed, it
+     * is forgotten as a child, and its process ID is given back if no process
+     * has been created since.
+     *
+     * @param child the process to discard.
+     */
+    private void discardChild(UserProcess child) {
+        child.closeAllFileDescriptors();
+
+        childProcesses.remove(child);
+        child.parentProcess = null;
+
+        if (UserKernel.processID == child.processID + 1)
+            UserKernel.processID--;
+    }
+
     private int exec(int file, int argc, int argv) {
 
         String filename = readVirtualMemoryString(file, 256);
@@ -841,33 +1965,54 @@ public class UserProcess {
 
             Lib.debug(dbgProcess, "UserProcess.handleException(), vpn: " + String.valueOf(vpn) + " V Adress: " + Lib.toHexString(badVAddr));
 
-            if(vpn > pageTable.length) {
+            if(vpn < 0 || vpn >= pageTable.length) {
                 Lib.debug(dbgProcess, "UserProcess.handleException(), vpn is larger than page table size, vpn: " + String.valueOf(vpn) + " pt size: " + String.valueOf(pageTable.length));
-                Lib.assertNotReached("Unexpected exception");
+                handleUnmappedFault(vpn);
+                break;
+            }
+
+            if (pageTable[vpn] == null) {
+                handleUnmappedFault(vpn);
+                break;
+            }
+
+            if (!pageTable[vpn].valid && !zeroFill(vpn)) {
+                exit(statusKilled);
+                break;
             }
 
-            // use LRU to find which entry to replace with this one
-            int writeIndex = 0;
-            int tlbSize = processor.getTLBSize();
-            TranslationEntry entry;
             pageTable[vpn].used = true;
+            refillTLB(pageTable[vpn]);
+            break;
+
+        case Processor.exceptionPageFault:
+            // the first touch of a stack or bss page
+            vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+            if (vpn >= 0 && vpn < numPages && pageTable[vpn] == null) {
+                handleUnmappedFault(vpn);
+                break;
+            }
+            if (vpn >= 0 && vpn < numPages) {
+                if (!zeroFill(vpn))
+                    exit(statusKilled);
+                break;
+            }
 
-            for(int index = 0; index < tlbSize; index++) {
-                entry = processor.readTLBEntry(index);
+            Lib.debug(dbgProcess, "UserProcess.handleException(), page fault outside the address space " + vpn);
+            handleUnmappedFault(vpn);
+            break;
 
-                if(entry == null) {
-                    writeIndex = index;
-                    break;
-                } else if(entry.used == false) {
-                    writeIndex = index;
-                    break;
-                } else if(index + 1 == tlbSize) {
-                    Random rand = new Random();
-                    writeIndex = rand.nextInt(tlbSize);
-                }
+        case Processor.exceptionReadOnly:
+            vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+            if (vpn >= 0 && vpn < numPages && copyOnWrite[vpn]) {
+                if (!breakCopyOnWrite(vpn))
+                    exit(statusKilled);
+                break;
             }
 
-            processor.writeTLBEntry(writeIndex, pageTable[vpn]);
+            // a write to a page that really is read-only
+            Lib.debug(dbgProcess, "UserProcess.handleException(), write to read-only page " + vpn);
+            exit(statusKilled);
             break;
 
         default:
@@ -898,7 +2043,7 @@ public class UserProcess {
      * @param descriptorId
      * @return
      */
-    private MyFileDescriptor getFileDescriptor(int descriptorId) {
+    protected MyFileDescriptor getFileDescriptor(int descriptorId) {
         if (descriptorId > 15 || descriptorId < 0) {
             Lib.debug(dbgProcess, "getFileDescriptor() - invlaid file descriptor id: " + String.valueOf(descriptorId));
             return null;
@@ -966,16 +2111,49 @@ public class UserProcess {
 
     /** The program being run by this process. */
     protected Coff coff;
+    /** The name of the file <tt>coff</tt> was loaded from. */
+    protected String executableName;
+
+    /** <tt>true</tt> for each page shared read-only with a forked process until written. */
+    protected boolean[] copyOnWrite;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
-    /** The number of contiguous pages occupied by the program. */
+    /**
+     * The number of pages from address 0 to the top of the program's address
+     * space, including gaps between sections and the guard pages, which are not
+     * mapped.
+     */
     protected int numPages;
 
-    /** The number of pages in the program's stack. */
-    protected final int stackPages = 8;
+    /**
+     * The number of pages reserved for the program's stack, set by the
+     * <tt>nachos.conf</tt> key <tt>UserProcess.stackPages</tt> (default 8). Only
+     * the pages the stack grows into are given frames.
+     */
+    protected static final int stackPages = Config.getInteger("UserProcess.stackPages", 8);
+
+    /**
+     * The number of unmapped pages between the program's sections and its
+     * stack, set by the <tt>nachos.conf</tt> key <tt>UserProcess.guardPages</tt>
+     * (default 1). A program whose stack grows into them is killed.
+     */
+    protected static final int guardPages = Config.getInteger("UserProcess.guardPages", 1);
+
+    /** The first page of the stack. */
+    protected int stackBase;
 
     private int initialPC, initialSP;
+    /** The registers a forked process starts with, or <tt>null</tt>. */
+    private int[] forkRegisters = null;
+
+    /** The page in each TLB entry while this process runs, or -1 if invalid. */
+    private int[] tlbPages = null;
+    /** The next TLB entry to replace when none is free. */
+    private int tlbHand = 0;
+    /** Reused to load TLB entries without allocating. */
+    private TranslationEntry tlbScratch = new TranslationEntry();
+    private static final TranslationEntry invalidTLBEntry = new TranslationEntry(0, 0, false, false, false, false);
     private int argc, argv;
     private MyFileDescriptor[] descriptors;
 
@@ -994,6 +2172,10 @@ public class UserProcess {
     private static FileSystem fileSystem = ThreadedKernel.fileSystem;
     private static Vector<String> filesInUse = new Vector<String>();
     private static Vector<String> deleteBuffer = new Vector<String>();
+    /** The number of processes using each executable shared by fork(). */
+    private static HashMap<Coff, Integer> coffUsers = new HashMap<Coff, Integer>();
+    /** The exit status of a process killed by the kernel. */
+    private static final int statusKilled = -9999;
 
     // new variables
     // exec variables
@@ -1008,12 +2190,37 @@ public class UserProcess {
     private Lock hmLock;
 
     // join variables
-    private UThread thread;
+    UThread thread;
+
+    // staging buffer for read() and write() on fragmented user buffers
+    private byte[] ioBuffer = null;
+    private static final int ioBufferSize = 4 * pageSize;
+    /** Staging buffer for sendfile(), allocated on first use. */
+    private byte[] sendfileBuffer = null;
+    private static final int sendfileBufferSize = 64 * pageSize;
+
+    /** The most buffers one readv() or writev() may name. */
+    private static final int maxIovecs = 16;
+
+    /** The capacity of the ring buffer of each pipe. */
+    private static final int pipeSize = 4 * pageSize;
+
+    /** The header of the rings registered by ring_setup(), or -1 if none. */
+    private int ringAddress = -1;
+    private int ringEntries = 0;
+
+    private static final int maxRingEntries = 256;
+    private static final int ringHeaderSize = 16, ringRequestSize = 20, ringCompletionSize = 8;
+    /** The opcodes of ring requests. */
+    private static final int ringRead = 0, ringWrite = 1, ringOpen = 2, ringClose = 3;
 
     public class MyFileDescriptor {
         private OpenFile file;
         private boolean open;
+        private boolean pipe = false;
         private int id;
+        /** The number of other processes this descriptor is shared with. */
+        private int sharers = 0;
 
         public MyFileDescriptor(int id) {
             this.id = id;
@@ -1041,7 +2248,11 @@ public class UserProcess {
         }
 
         public boolean createFile(String name) {
-            return openFile(name, true);
+            if (!openFile(name, true))
+                return false;
+
+            fileChanged(name);
+            return true;
         }
 
         public boolean openFile(String fileName) {
@@ -1090,6 +2301,39 @@ public class UserProcess {
             return true;
         }
 
+        /**
+         * Open this descriptor on one end of a pipe.
+         *
+         * @param end the end of the pipe.
+         */
+        public void setAsPipe(OpenFile end) {
+            if (file != null)
+                closeFile();
+
+            file = end;
+            open = true;
+            pipe = true;
+            filesInUse.add(file.getName());
+        }
+
+        /**
+         * Test if this descriptor is open on one end of a pipe.
+         *
+         * @return <tt>true</tt> if this descriptor is a pipe end.
+         */
+        public boolean isPipe() {
+            return pipe;
+        }
+
+        /**
+         * Share this descriptor with a process forked from the one that owns it.
+         * The file stays open until every process sharing it has closed it.
+         */
+        public void share() {
+            Lib.assertTrue(open);
+            sharers++;
+        }
+
         public boolean closeFile() {
             if (file == null) {
                 Lib.debug(dbgProcess, "closeFile() - file is null");
@@ -1097,8 +2341,13 @@ public class UserProcess {
             }
             if (open == false)
                 return true;
+            if (sharers > 0) {
+                sharers--;
+                return true;
+            }
 
             open = false;
+            pipe = false;
             file.close();
             filesInUse.remove(file.getName());
 
@@ -1134,14 +2383,31 @@ public class UserProcess {
             }
 
             int result = file.write(pos, buf, offset, length);
-            if (result == -1 || result < length)
+            // a short write, such as to a pipe whose reader closed, still counts
+            if (result <= 0 && length > 0)
                 return -1;
 
+            if (file.getFileSystem() != null)
+                fileChanged(file.getName());
+
             return result;
         }
 
         public int writeFile(byte[] buf, int offset, int length) {
-            return writeFile(file.tell(), buf, offset, length);
+            if (file == null) {
+                Lib.debug(dbgProcess, "writeFile() - file is null");
+                return -1;
+            }
+
+            int result = file.write(buf, offset, length);
+            // a short write, such as to a pipe whose reader closed, still counts
+            if (result <= 0 && length > 0)
+                return -1;
+
+            if (file.getFileSystem() != null)
+                fileChanged(file.getName());
+
+            return result;
         }
 
         public boolean unlinkFile() {
@@ -1166,6 +2432,8 @@ public class UserProcess {
             }
 
             boolean result = fileSystem.remove(name);
+            if (result)
+                fileChanged(name);
             if (result && deleteBuffer.contains(name)) {
                 file = null;
                 deleteBuffer.remove(name);
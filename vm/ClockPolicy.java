@@ -0,0 +1,45 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock, or second-chance, policy. A hand sweeps round the frames. A page
+ * whose used bit is set has been touched since the hand last passed it, so the
+ * hand clears the bit and moves on; the first evictable page found with the bit
+ * clear is the victim. Each step of the hand either clears a bit or finds a
+ * victim, so the cost of an eviction is constant when averaged over many.
+ *
+ * <p>
+ * The core map copies the used bits of the running process's TLB entries into
+ * the page table, and clears them in the TLB, before asking for a victim, so
+ * the bits the hand sees are up to date.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public int chooseVictim() {
+        int numFrames = coreMap.getNumFrames();
+
+        // after one full turn every evictable page has had its bit cleared
+        for (int i = 0; i < 2 * numFrames; i++) {
+            int ppn = hand;
+            hand = (hand + 1) % numFrames;
+
+            if (!coreMap.isEvictable(ppn))
+                continue;
+
+            if (!coreMap.testAndClearUsed(ppn))
+                return ppn;
+
+            VMKernel.numClockSteps++;
+        }
+
+        return -1;
+    }
+
+    private int hand = 0;
+}
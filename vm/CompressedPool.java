@@ -0,0 +1,184 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded pool of compressed pages, kept in the host's memory in front of the
+ * swap file. Each page in the pool stands for one swap slot, and is more recent
+ * than what the file holds in that slot.
+ *
+ * <p>
+ * A page of zeros, or of any one repeated byte, is kept as just that byte.
+ * Other pages are compressed by a <tt>PageCompressor</tt>; a page that does not
+ * compress to at most three quarters of its size is refused, and goes to the
+ * file. The pool is full when its compressed pages, plus a small overhead per
+ * page, reach its capacity. Pages leave it in least recently used order.
+ *
+ * <p>
+ * Every method must be called with <tt>VMKernel.memoryLock</tt> held.
+ */
+public class CompressedPool {
+    /**
+     * Allocate a new, empty pool.
+     *
+     * @param capacity the most bytes the pool may hold.
+     */
+    public CompressedPool(int capacity) {
+        Lib.assertTrue(capacity >= 0);
+
+        this.capacity = capacity;
+    }
+
+    /**
+     * Compress a page into the pool, replacing any page already kept for its
+     * slot. The pool may be over capacity afterwards.
+     *
+     * @param slot   the swap slot the page belongs in.
+     * @param memory the array holding the page.
+     * @param offset the offset of the page in <tt>memory</tt>.
+     * @return <tt>true</tt> if the page was kept.
+     */
+    public boolean store(int slot, byte[] memory, int offset) {
+        remove(slot);
+
+        Entry entry = new Entry();
+        boolean filled = isFilled(memory, offset);
+        if (filled) {
+            entry.fill = memory[offset];
+        } else {
+            int length = compressor.compress(memory, offset, pageSize, buffer);
+            if (length >= 0) {
+                entry.data = new byte[length];
+                System.arraycopy(buffer, 0, entry.data, 0, length);
+            }
+        }
+
+        if ((!filled && entry.data == null) || entry.getSize() > capacity) {
+            VMKernel.numPoolRejects++;
+            return false;
+        }
+
+        if (filled) {
+            if (entry.fill == 0)
+                VMKernel.numPoolZeroPages++;
+            else
+                VMKernel.numPoolFilledPages++;
+        }
+
+        entries.put(slot, entry);
+        size += entry.getSize();
+
+        VMKernel.numPoolStores++;
+        VMKernel.poolBytesIn += pageSize;
+        VMKernel.poolBytesOut += entry.getSize();
+
+        return true;
+    }
+
+    /**
+     * Decompress the page kept for a slot, and mark it recently used.
+     *
+     * @param slot   the swap slot.
+     * @param memory the array to decompress into.
+     * @param offset the offset in <tt>memory</tt> at which to put the page.
+     * @return <tt>true</tt> if the pool had the page.
+     */
+    public boolean load(int slot, byte[] memory, int offset) {
+        Entry entry = entries.get(slot);
+        if (entry == null)
+            return false;
+
+        if (entry.data == null) {
+            for (int i = 0; i < pageSize; i++)
+                memory[offset + i] = entry.fill;
+        } else {
+            Lib.assertTrue(PageCompressor.decompress(entry.data, entry.data.length, memory, offset) == pageSize);
+        }
+
+        return true;
+    }
+
+    /**
+     * Test whether the pool has the page for a slot.
+     *
+     * @param slot the swap slot.
+     * @return <tt>true</tt> if the page is in the pool.
+     */
+    public boolean contains(int slot) {
+        return entries.containsKey(slot);
+    }
+
+    /**
+     * Drop the page for a slot, if the pool has it.
+     *
+     * @param slot the swap slot.
+     */
+    public void remove(int slot) {
+        Entry entry = entries.remove(slot);
+        if (entry != null)
+            size -= entry.getSize();
+    }
+
+    /**
+     * Return the slot of the least recently used page in the pool.
+     *
+     * @return the slot, or -1 if the pool is empty.
+     */
+    public int getOldest() {
+        Iterator<Integer> slots = entries.keySet().iterator();
+        return slots.hasNext() ? slots.next() : -1;
+    }
+
+    /**
+     * Test whether the pool holds more than its capacity.
+     *
+     * @return <tt>true</tt> if pages must leave the pool.
+     */
+    public boolean isOverfull() {
+        return size > capacity;
+    }
+
+    /**
+     * Return the number of pages in the pool.
+     *
+     * @return the number of pages.
+     */
+    public int getNumPages() {
+        return entries.size();
+    }
+
+    private static boolean isFilled(byte[] memory, int offset) {
+        byte fill = memory[offset];
+        for (int i = 1; i < pageSize; i++) {
+            if (memory[offset + i] != fill)
+                return false;
+        }
+
+        return true;
+    }
+
+    private static class Entry {
+        int getSize() {
+            return overhead + ((data == null) ? 0 : data.length);
+        }
+
+        /** The compressed page, or <tt>null</tt> if every byte is <tt>fill</tt>. */
+        byte[] data = null;
+        byte fill;
+    }
+
+    private int capacity;
+    private int size = 0;
+    /** The pages in the pool, by slot, least recently used first. */
+    private LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+
+    private PageCompressor compressor = new PageCompressor();
+    private byte[] buffer = new byte[pageSize * 3 / 4];
+
+    private static final int pageSize = Processor.pageSize;
+    /** The bytes charged for each page, whatever its compressed size. */
+    private static final int overhead = 16;
+}
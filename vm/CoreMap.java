@@ -0,0 +1,429 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+
+/**
+ * The inverted page table: one entry per frame of physical memory, recording
+ * which process page occupies the frame, or which shared page. This lets the
+ * kernel find the owner of a frame, and the page table entry holding its used
+ * and dirty bits, without searching every process's page table.
+ *
+ * <p>
+ * Free frames still come from <tt>UserKernel.frameAllocator</tt>; the core map
+ * only takes over once that runs dry, when it asks a
+ * <tt>ReplacementPolicy</tt> for a victim.
+ *
+ * <p>
+ * A frame is <i>pinned</i> while the kernel is using it: while a page is being
+ * read into it, and while a syscall is transferring data directly to or from
+ * it. Pinned frames are never evicted.
+ *
+ * <p>
+ * One frame may hold the <i>zero page</i>, a page of zeros that processes map
+ * read-only, copy-on-write, in place of pages they have read but not yet
+ * written. It is allocated the first time it is needed and stays pinned from
+ * then on. The core map does not track who maps it.
+ *
+ * <p>
+ * Frames of shared memory segments are <i>wired</i>: they belong to no one
+ * process, are mapped by every process attached to their segment, and are
+ * never evicted, until the segment is removed.
+ *
+ * <p>
+ * Every method must be called with <tt>VMKernel.memoryLock</tt> held.
+ */
+public class CoreMap {
+    /**
+     * Allocate a new core map.
+     *
+     * @param numFrames the number of frames of physical memory.
+     * @param policy    the policy that chooses pages to evict.
+     */
+    public CoreMap(int numFrames, ReplacementPolicy policy) {
+        frames = new Frame[numFrames];
+        for (int i = 0; i < numFrames; i++)
+            frames[i] = new Frame();
+
+        this.policy = policy;
+        policy.initialize(this);
+    }
+
+    /**
+     * Allocate a frame to hold a page of a process, evicting another page if
+     * memory is full. If every frame is pinned, wait for one to be unpinned. The
+     * frame is returned pinned.
+     *
+     * @param owner the process the page belongs to.
+     * @param vpn   the virtual page that will occupy the frame.
+     * @return the frame number.
+     */
+    public int allocate(VMProcess owner, int vpn) {
+        int ppn = takeFrame();
+
+        Frame frame = frames[ppn];
+        frame.shared = null;
+        frame.owner = owner;
+        frame.vpn = vpn;
+        frame.entry = owner.getPageTableEntry(vpn);
+        frame.pinCount = 1;
+
+        policy.pageLoaded(ppn);
+
+        return ppn;
+    }
+
+    /**
+     * Take a free frame, evicting a page to free one if memory is full.
+     *
+     * @return the frame number.
+     */
+    private int takeFrame() {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+
+        int ppn = UserKernel.frameAllocator.allocate();
+
+        // make the used bits the policy sees current
+        if (ppn == -1 && UserKernel.currentProcess() instanceof VMProcess)
+            ((VMProcess) UserKernel.currentProcess()).collectTLBBits();
+
+        while (ppn == -1) {
+            ppn = policy.chooseVictim();
+            if (ppn == -1) {
+                unpinned.sleep();
+                ppn = UserKernel.frameAllocator.allocate();
+                continue;
+            }
+
+            Frame victim = frames[ppn];
+            VMKernel.numEvictions++;
+            if (victim.shared != null)
+                evictShared(victim.shared);
+            else
+                victim.owner.pageOut(victim.vpn);
+        }
+
+        return ppn;
+    }
+
+    /**
+     * Return the frame holding the zero page, allocating and clearing it the
+     * first time.
+     *
+     * @return the zero page's frame number.
+     */
+    public int getZeroPage() {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+
+        if (zeroPage == -1) {
+            int ppn = takeFrame();
+
+            byte[] memory = Machine.processor().getMemory();
+            Arrays.fill(memory, ppn * Processor.pageSize, (ppn + 1) * Processor.pageSize, (byte) 0);
+
+            frames[ppn].pinCount = 1;
+            zeroPage = ppn;
+        }
+
+        return zeroPage;
+    }
+
+    /**
+     * Test whether a frame holds the zero page.
+     *
+     * @param ppn the frame.
+     * @return <tt>true</tt> if it is the zero page.
+     */
+    public boolean isZeroPage(int ppn) {
+        return ppn == zeroPage;
+    }
+
+    /**
+     * Allocate a wired frame, evicting a page if memory is full, and fill it
+     * with zeros. It stays in memory until <tt>freeWired()</tt>.
+     *
+     * @return the frame number.
+     */
+    public int allocateWired() {
+        int ppn = takeFrame();
+
+        byte[] memory = Machine.processor().getMemory();
+        Arrays.fill(memory, ppn * Processor.pageSize, (ppn + 1) * Processor.pageSize, (byte) 0);
+
+        frames[ppn].wired = true;
+        return ppn;
+    }
+
+    /**
+     * Return a wired frame to the free pool.
+     *
+     * @param ppn the frame, allocated by <tt>allocateWired()</tt>.
+     */
+    public void freeWired(int ppn) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+        Lib.assertTrue(frames[ppn].wired && frames[ppn].pinCount == 0);
+
+        frames[ppn].wired = false;
+        UserKernel.frameAllocator.free(ppn);
+
+        unpinned.wake();
+    }
+
+    /**
+     * Return a frame to the free pool. The frame must not be pinned.
+     *
+     * @param ppn the frame to free.
+     */
+    public void free(int ppn) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+        Lib.assertTrue(frames[ppn].owner != null && frames[ppn].pinCount == 0);
+
+        frames[ppn].owner = null;
+        frames[ppn].entry = null;
+        UserKernel.frameAllocator.free(ppn);
+
+        unpinned.wake();
+    }
+
+    /**
+     * Make a frame that belongs to a process shared. The frame keeps any pins,
+     * but no longer belongs to any one process; the processes mapping it are
+     * recorded in <i>page</i>.
+     *
+     * @param ppn  the frame.
+     * @param page the shared page now held in the frame.
+     */
+    public void share(int ppn, SharedPage page) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+        Lib.assertTrue(frames[ppn].owner != null);
+
+        frames[ppn].owner = null;
+        frames[ppn].entry = null;
+        frames[ppn].shared = page;
+    }
+
+    /**
+     * Free the frame of a cached page that no process maps, because the page has
+     * been dropped from the cache.
+     *
+     * @param ppn the frame.
+     */
+    public void freeShared(int ppn) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+
+        Frame frame = frames[ppn];
+        Lib.assertTrue(frame.shared != null && frame.shared.mappers.isEmpty() && frame.pinCount == 0);
+
+        frame.shared = null;
+        UserKernel.frameAllocator.free(ppn);
+
+        unpinned.wake();
+    }
+
+    /**
+     * Return the shared page held in a frame.
+     *
+     * @param ppn the frame.
+     * @return the shared page, or <tt>null</tt> if the frame is free or belongs
+     *         to a single process.
+     */
+    public SharedPage getSharedPage(int ppn) {
+        return frames[ppn].shared;
+    }
+
+    /**
+     * Record that a process no longer maps a shared frame. A cached page stays
+     * in its frame. A copy-on-write page that no process maps is freed, and one
+     * that only one process still maps becomes that process's own page again.
+     *
+     * @param process the process that has stopped mapping the frame.
+     * @param ppn     the shared frame.
+     */
+    public void unmap(VMProcess process, int ppn) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+
+        Frame frame = frames[ppn];
+        SharedPage page = frame.shared;
+        Lib.assertTrue(page != null && page.mappers.remove(process));
+
+        // a cached page stays until evicted, unless it has been dropped
+        if (page.isCached() ? !(page.stale && page.mappers.isEmpty()) : page.mappers.size() > 1)
+            return;
+
+        if (page.mappers.isEmpty()) {
+            frame.shared = null;
+            UserKernel.frameAllocator.free(ppn);
+            unpinned.wake();
+            return;
+        }
+
+        VMProcess owner = page.mappers.getFirst();
+
+        frame.shared = null;
+        frame.owner = owner;
+        frame.vpn = page.vpn;
+        frame.entry = owner.getPageTableEntry(page.vpn);
+        frame.entry.dirty = page.mustSave(owner);
+    }
+
+    /**
+     * Take a shared page away from every process mapping it, so that its frame
+     * can be reused. Copy-on-write pages are first saved to swap as needed.
+     */
+    private void evictShared(SharedPage page) {
+        for (VMProcess process : page.mappers)
+            process.unmapShared(page);
+
+        page.mappers.clear();
+
+        if (page.isCached() && !page.stale)
+            VMKernel.pageCache.remove(page);
+    }
+
+    /**
+     * Prevent a frame from being evicted until a matching call to
+     * <tt>unpin()</tt>.
+     *
+     * @param ppn the frame to pin.
+     */
+    public void pin(int ppn) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+        Lib.assertTrue(frames[ppn].owner != null || frames[ppn].shared != null || frames[ppn].wired
+                || ppn == zeroPage);
+
+        frames[ppn].pinCount++;
+    }
+
+    /**
+     * Undo one call to <tt>pin()</tt>, or the pin left by <tt>allocate()</tt>.
+     *
+     * @param ppn the frame to unpin.
+     */
+    public void unpin(int ppn) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+        Lib.assertTrue(frames[ppn].pinCount > 0);
+
+        if (--frames[ppn].pinCount == 0)
+            unpinned.wake();
+    }
+
+    /**
+     * Test whether a frame is pinned.
+     *
+     * @param ppn the frame to test.
+     * @return <tt>true</tt> if the frame is pinned.
+     */
+    public boolean isPinned(int ppn) {
+        return frames[ppn].pinCount > 0;
+    }
+
+    /**
+     * Test whether a frame may be evicted: it holds a page and is not pinned.
+     *
+     * @param ppn the frame to test.
+     * @return <tt>true</tt> if the frame may be evicted.
+     */
+    public boolean isEvictable(int ppn) {
+        return (frames[ppn].owner != null || frames[ppn].shared != null) && frames[ppn].pinCount == 0;
+    }
+
+    /**
+     * Test whether the page in a frame has been used since the last call, and
+     * clear its used bit. For a shared page, a use by any process counts.
+     *
+     * @param ppn the frame. Must hold a page.
+     * @return <tt>true</tt> if the page has been used.
+     */
+    public boolean testAndClearUsed(int ppn) {
+        Frame frame = frames[ppn];
+        if (frame.shared != null) {
+            boolean used = false;
+            for (VMProcess process : frame.shared.mappers) {
+                TranslationEntry entry = process.getPageTableEntry(frame.shared.vpn);
+                used |= entry.used;
+                entry.used = false;
+            }
+            return used;
+        }
+
+        Lib.assertTrue(frame.owner != null);
+
+        boolean used = frame.entry.used;
+        frame.entry.used = false;
+        return used;
+    }
+
+    /**
+     * Return the process whose page occupies a frame.
+     *
+     * @param ppn the frame.
+     * @return the owning process, or <tt>null</tt> if the frame is free or
+     *         shared.
+     */
+    public VMProcess getOwner(int ppn) {
+        return frames[ppn].owner;
+    }
+
+    /**
+     * Return the virtual page number of the page occupying a frame.
+     *
+     * @param ppn the frame. Must belong to a process.
+     * @return the page's virtual page number.
+     */
+    public int getVPN(int ppn) {
+        Lib.assertTrue(frames[ppn].owner != null);
+        return frames[ppn].vpn;
+    }
+
+    /**
+     * Return the page table entry of the page occupying a frame. Its used and
+     * dirty bits are current except for changes still held in the TLB.
+     *
+     * @param ppn the frame. Must belong to a process.
+     * @return the owner's page table entry for the page.
+     */
+    public TranslationEntry getEntry(int ppn) {
+        Lib.assertTrue(frames[ppn].owner != null);
+        return frames[ppn].entry;
+    }
+
+    /**
+     * Return the number of frames of physical memory.
+     *
+     * @return the number of frames.
+     */
+    public int getNumFrames() {
+        return frames.length;
+    }
+
+    /**
+     * Return the policy used to choose pages to evict.
+     *
+     * @return the replacement policy.
+     */
+    public ReplacementPolicy getPolicy() {
+        return policy;
+    }
+
+    private static class Frame {
+        /** The process whose page is in this frame, or <tt>null</tt> if free or shared. */
+        VMProcess owner = null;
+        int vpn;
+        /** The owner's page table entry for the page. */
+        TranslationEntry entry = null;
+        /** The page in this frame, if it is shared. */
+        SharedPage shared = null;
+        /** <tt>true</tt> if the frame belongs to a shared memory segment. */
+        boolean wired = false;
+        int pinCount = 0;
+    }
+
+    private Frame[] frames;
+    private ReplacementPolicy policy;
+    /** The frame holding the zero page, or -1 if it has not been needed yet. */
+    private int zeroPage = -1;
+    private Condition2 unpinned = new Condition2(VMKernel.memoryLock);
+}
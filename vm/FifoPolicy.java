@@ -0,0 +1,33 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Evicts pages in roughly the order they were loaded, by a hand that sweeps
+ * round the frames, passing over frames that are free or pinned. Each victim's
+ * frame is refilled at once, so the hand reaches it again only after every
+ * other frame has been replaced.
+ */
+public class FifoPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new FIFO policy.
+     */
+    public FifoPolicy() {
+    }
+
+    public int chooseVictim() {
+        int numFrames = coreMap.getNumFrames();
+
+        for (int i = 0; i < numFrames; i++) {
+            int ppn = hand;
+            hand = (hand + 1) % numFrames;
+
+            if (coreMap.isEvictable(ppn))
+                return ppn;
+        }
+
+        return -1;
+    }
+
+    private int hand = 0;
+}
@@ -0,0 +1,144 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+
+/**
+ * A kernel-wide cache of the read-only pages of executables, so that every
+ * process running the same program shares one copy of its text.
+ *
+ * <p>
+ * A cached page is identified by the name of the executable and the page's
+ * virtual page number, which fixes both the section and the page within it. The
+ * first process to fault on the page loads it from the executable; later
+ * processes just map the same frame. The cache counts the processes mapping
+ * each page. When the count drops to zero the page stays cached, so that the
+ * next run of the program finds it, but it may then be evicted like any other
+ * page. A page that is still mapped can also be evicted: it is read-only, so it
+ * is never dirty, and every process mapping it simply loses its translation.
+ *
+ * <p>
+ * Cached pages are never written, so a cache entry stays correct as long as the
+ * executable does not change. Every process tells the cache when it creates,
+ * writes or removes a file, and the cache then drops all pages of that name,
+ * so that the next run of the program loads the new text. A dropped page that
+ * no process maps is freed at once. One that is still mapped stays with the
+ * processes mapping it, and is freed when the last of them stops.
+ *
+ * <p>
+ * Every method must be called with <tt>VMKernel.memoryLock</tt> held.
+ */
+public class PageCache {
+    /**
+     * Allocate a new, empty page cache.
+     */
+    public PageCache() {
+    }
+
+    /**
+     * Map a cached page into a process, if the page is cached.
+     *
+     * @param process    the process faulting on the page.
+     * @param executable the name of the process's executable.
+     * @param vpn        the page.
+     * @return the frame holding the page, or -1 if it is not cached.
+     */
+    public int map(VMProcess process, String executable, int vpn) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+
+        HashMap<Integer, SharedPage> cached = executables.get(executable);
+        SharedPage page = (cached == null) ? null : cached.get(vpn);
+        if (page == null) {
+            VMKernel.numCacheMisses++;
+            return -1;
+        }
+
+        page.mappers.add(process);
+        VMKernel.numCacheHits++;
+
+        return page.ppn;
+    }
+
+    /**
+     * Add a page that a process has just loaded into a frame to the cache. The
+     * frame becomes shared, and the process is its first mapper.
+     *
+     * @param process    the process that loaded the page.
+     * @param executable the name of the process's executable.
+     * @param vpn        the page.
+     * @param ppn        the frame the page was loaded into.
+     */
+    public void insert(VMProcess process, String executable, int vpn, int ppn) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+
+        SharedPage page = new SharedPage(executable, vpn, ppn);
+        page.mappers.add(process);
+
+        HashMap<Integer, SharedPage> cached = executables.get(executable);
+        if (cached == null) {
+            cached = new HashMap<Integer, SharedPage>();
+            executables.put(executable, cached);
+        }
+
+        Lib.assertTrue(cached.put(vpn, page) == null);
+        VMKernel.coreMap.share(ppn, page);
+        numPages++;
+    }
+
+    /**
+     * Drop every page of an executable from the cache, because the file has
+     * been created, written or removed.
+     *
+     * @param executable the name of the file that changed.
+     */
+    public void invalidate(String executable) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+
+        HashMap<Integer, SharedPage> cached = executables.remove(executable);
+        if (cached == null)
+            return;
+
+        for (SharedPage page : cached.values()) {
+            page.stale = true;
+            if (page.mappers.isEmpty())
+                VMKernel.coreMap.freeShared(page.ppn);
+        }
+
+        numPages -= cached.size();
+        VMKernel.numCacheInvalidations += cached.size();
+    }
+
+    /**
+     * Drop a page from the cache. Called by the core map once no process maps
+     * the page any more, so that its frame can be reused.
+     *
+     * @param page the page to drop.
+     */
+    void remove(SharedPage page) {
+        Lib.assertTrue(page.mappers.isEmpty() && !page.stale);
+
+        HashMap<Integer, SharedPage> cached = executables.get(page.executable);
+        Lib.assertTrue(cached.remove(page.vpn) == page);
+        if (cached.isEmpty())
+            executables.remove(page.executable);
+
+        numPages--;
+    }
+
+    /**
+     * Return the number of pages in the cache.
+     *
+     * @return the number of cached pages.
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** The cached pages of each executable, by virtual page number. */
+    private HashMap<String, HashMap<Integer, SharedPage>> executables =
+            new HashMap<String, HashMap<Integer, SharedPage>>();
+    private int numPages = 0;
+}
@@ -0,0 +1,208 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 compressor for pages, in the style of LZ4. The compressed form is
+ * a series of sequences, each a run of literal bytes followed by a copy of
+ * earlier output:
+ *
+ * <pre>
+ * token    literal length (high 4 bits), match length - 4 (low 4 bits)
+ * [length] more literal length, if the 4 bits were 15
+ * literals
+ * distance how far back the match starts, 2 bytes, low byte first
+ * [length] more match length, if the 4 bits were 15
+ * </pre>
+ *
+ * A length that does not fit in 4 bits continues in following bytes, each
+ * adding up to 255; a byte less than 255 ends it. The last sequence has only
+ * literals, and ends the input.
+ *
+ * <p>
+ * Matches are found through a table of the last position at which each hash of
+ * 4 bytes was seen, so compression makes one pass over the page and never
+ * searches. A compressor keeps its table between calls, and so allocates
+ * nothing; it is not safe to use from two threads at once.
+ */
+public class PageCompressor {
+    /**
+     * Allocate a new compressor.
+     */
+    public PageCompressor() {
+    }
+
+    /**
+     * Compress a page, unless it would not fit in the given buffer.
+     *
+     * @param src    the array holding the page.
+     * @param offset the offset of the page in <tt>src</tt>.
+     * @param length the size of the page. At most 65536.
+     * @param dst    the buffer to compress into.
+     * @return the compressed length, or -1 if the page does not compress into
+     *         <tt>dst</tt>.
+     */
+    public int compress(byte[] src, int offset, int length, byte[] dst) {
+        Lib.assertTrue(length <= maxDistance + 1);
+
+        Arrays.fill(table, -1);
+
+        int ip = 0, anchor = 0, op = 0;
+        while (ip + minMatch <= length) {
+            int sequence = read32(src, offset + ip);
+            int hash = (sequence * 0x9E3779B1) >>> (32 - hashBits);
+
+            int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || read32(src, offset + ref) != sequence) {
+                ip++;
+                continue;
+            }
+
+            int matchLength = minMatch;
+            while (ip + matchLength < length && src[offset + ip + matchLength] == src[offset + ref + matchLength])
+                matchLength++;
+
+            op = emit(dst, op, src, offset + anchor, ip - anchor, ip - ref, matchLength);
+            if (op < 0)
+                return -1;
+
+            ip += matchLength;
+            anchor = ip;
+        }
+
+        if (anchor < length)
+            op = emit(dst, op, src, offset + anchor, length - anchor, 0, 0);
+
+        return op;
+    }
+
+    /**
+     * Decompress a page compressed by <tt>compress()</tt>.
+     *
+     * @param src    the compressed page.
+     * @param length the compressed length.
+     * @param dst    the array to decompress into.
+     * @param offset the offset in <tt>dst</tt> at which to put the page.
+     * @return the size of the page.
+     */
+    public static int decompress(byte[] src, int length, byte[] dst, int offset) {
+        int ip = 0, op = offset;
+        while (ip < length) {
+            int token = src[ip++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip >= length)
+                break;
+
+            int distance = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+            ip += 2;
+
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += minMatch;
+
+            // byte by byte, since a match may overlap its own output
+            for (int i = 0; i < matchLength; i++, op++)
+                dst[op] = dst[op - distance];
+        }
+
+        return op - offset;
+    }
+
+    private static int emit(byte[] dst, int op, byte[] src, int literals, int literalLength, int distance,
+            int matchLength) {
+        // the most this sequence can take
+        if (op + literalLength + literalLength / 255 + matchLength / 255 + 5 > dst.length)
+            return -1;
+
+        int tokenPos = op++;
+        int token = Math.min(literalLength, 15) << 4;
+        if (literalLength >= 15)
+            op = writeLength(dst, op, literalLength - 15);
+
+        System.arraycopy(src, literals, dst, op, literalLength);
+        op += literalLength;
+
+        if (matchLength > 0) {
+            dst[op++] = (byte) distance;
+            dst[op++] = (byte) (distance >>> 8);
+
+            token |= Math.min(matchLength - minMatch, 15);
+            if (matchLength - minMatch >= 15)
+                op = writeLength(dst, op, matchLength - minMatch - 15);
+        }
+
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        for (; length >= 255; length -= 255)
+            dst[op++] = (byte) 255;
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int read32(byte[] buf, int offset) {
+        return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8) | ((buf[offset + 2] & 0xFF) << 16)
+                | (buf[offset + 3] << 24);
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+        PageCompressor compressor = new PageCompressor();
+        int pageSize = Processor.pageSize;
+        byte[] page = new byte[2 * pageSize], compressed = new byte[pageSize], out = new byte[2 * pageSize];
+
+        // words with a few distinct values, like an array of small integers
+        for (int i = 0; i < pageSize; i += 4)
+            page[pageSize + i] = (byte) (i / 4 % 7);
+        int length = compressor.compress(page, pageSize, pageSize, compressed);
+        Lib.assertTrue(length > 0 && length < pageSize / 4);
+        Lib.assertTrue(decompress(compressed, length, out, pageSize) == pageSize);
+        Lib.assertTrue(Arrays.equals(page, out));
+
+        // long runs need extended lengths
+        Arrays.fill(page, pageSize, pageSize + pageSize / 2, (byte) 1);
+        length = compressor.compress(page, pageSize, pageSize, compressed);
+        Lib.assertTrue(decompress(compressed, length, out, pageSize) == pageSize);
+        Lib.assertTrue(Arrays.equals(page, out));
+
+        // random data does not compress
+        for (int i = 0; i < pageSize; i++)
+            page[i] = (byte) Lib.random(256);
+        Lib.assertTrue(compressor.compress(page, 0, pageSize, new byte[pageSize * 3 / 4]) == -1);
+        byte[] large = new byte[2 * pageSize];
+        length = compressor.compress(page, 0, pageSize, large);
+        Lib.assertTrue(decompress(large, length, out, 0) == pageSize);
+        Lib.assertTrue(Arrays.equals(Arrays.copyOf(page, pageSize), Arrays.copyOf(out, pageSize)));
+    }
+
+    private int[] table = new int[1 << hashBits];
+
+    private static final int hashBits = 12;
+    private static final int minMatch = 4;
+    private static final int maxDistance = 0xFFFF;
+}
@@ -0,0 +1,151 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A sparse, two-level page table. The virtual page number is split into a
+ * directory index and an index within a <i>chunk</i> of consecutive pages. A
+ * chunk is only allocated once a page in it is mapped, and is released when its
+ * last page is unmapped, so the table takes memory in proportion to the pages
+ * that are mapped, wherever they are in the address space, rather than to the
+ * highest address used.
+ *
+ * <p>
+ * The processor only uses a page table directly when it has no TLB, and then
+ * it requires a flat array. A process running with a TLB can keep its
+ * translations in any form, and looks them up here on every TLB miss.
+ */
+public class PageTable {
+    /**
+     * Allocate a new, empty page table.
+     */
+    public PageTable() {
+    }
+
+    /**
+     * Return the translation for a page.
+     *
+     * @param vpn the virtual page number.
+     * @return the page's entry, or <tt>null</tt> if it is not mapped.
+     */
+    public TranslationEntry get(int vpn) {
+        if (vpn < 0 || vpn >= maxPages)
+            return null;
+
+        TranslationEntry[] chunk = directory[vpn >>> chunkBits];
+        return (chunk == null) ? null : chunk[vpn & chunkMask];
+    }
+
+    /**
+     * Map a page, which must not already be mapped.
+     *
+     * @param vpn   the virtual page number.
+     * @param entry the page's translation.
+     */
+    public void put(int vpn, TranslationEntry entry) {
+        Lib.assertTrue(vpn >= 0 && vpn < maxPages && entry != null);
+
+        int d = vpn >>> chunkBits;
+        if (directory[d] == null) {
+            directory[d] = new TranslationEntry[chunkSize];
+            numChunks++;
+        }
+
+        Lib.assertTrue(directory[d][vpn & chunkMask] == null);
+        directory[d][vpn & chunkMask] = entry;
+        chunkCounts[d]++;
+        numEntries++;
+    }
+
+    /**
+     * Unmap a page, if it is mapped.
+     *
+     * @param vpn the virtual page number.
+     */
+    public void remove(int vpn) {
+        if (get(vpn) == null)
+            return;
+
+        int d = vpn >>> chunkBits;
+        directory[d][vpn & chunkMask] = null;
+        numEntries--;
+
+        if (--chunkCounts[d] == 0) {
+            directory[d] = null;
+            numChunks--;
+        }
+    }
+
+    /**
+     * Test whether no page in a range is mapped.
+     *
+     * @param firstVPN the first page of the range.
+     * @param count    the number of pages in the range.
+     * @return <tt>true</tt> if no page in the range is mapped.
+     */
+    public boolean isFree(int firstVPN, int count) {
+        for (int vpn = firstVPN; vpn < firstVPN + count; vpn++) {
+            // a whole unallocated chunk is skipped at once
+            if (directory[vpn >>> chunkBits] == null)
+                vpn |= chunkMask;
+            else if (get(vpn) != null)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the number of pages mapped.
+     *
+     * @return the number of entries in the table.
+     */
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    /**
+     * Return the number of chunks allocated.
+     *
+     * @return the number of second-level tables.
+     */
+    public int getNumChunks() {
+        return numChunks;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+        PageTable table = new PageTable();
+
+        // a program at the bottom and a mapping near the top of the address space
+        int high = maxPages - 3;
+        for (int vpn = 0; vpn < 4; vpn++)
+            table.put(vpn, new TranslationEntry(vpn, -1, false, false, false, false));
+        table.put(high, new TranslationEntry(high, -1, false, false, false, false));
+
+        Lib.assertTrue(table.getNumEntries() == 5 && table.getNumChunks() == 2);
+        Lib.assertTrue(table.get(2).vpn == 2 && table.get(high).vpn == high);
+        Lib.assertTrue(table.get(4) == null && table.get(high - 1) == null);
+        Lib.assertTrue(table.get(-1) == null && table.get(maxPages) == null);
+
+        Lib.assertTrue(table.isFree(4, 3 * chunkSize) && !table.isFree(high - 5, 6));
+
+        table.remove(high);
+        Lib.assertTrue(table.getNumChunks() == 1 && table.get(high) == null);
+        table.remove(high);
+        Lib.assertTrue(table.getNumEntries() == 4);
+    }
+
+    private TranslationEntry[][] directory = new TranslationEntry[maxPages >>> chunkBits][];
+    /** The number of pages mapped in each chunk. */
+    private int[] chunkCounts = new int[maxPages >>> chunkBits];
+    private int numEntries = 0, numChunks = 0;
+
+    private static final int chunkBits = 10;
+    private static final int chunkSize = 1 << chunkBits;
+    private static final int chunkMask = chunkSize - 1;
+    /** Enough pages for every non-negative 32-bit address. */
+    private static final int maxPages = (int) ((1L << 31) / Processor.pageSize);
+}
@@ -0,0 +1,38 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Evicts a page chosen at random. Useful mainly as a baseline for the other
+ * policies.
+ */
+public class RandomPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new random policy.
+     */
+    public RandomPolicy() {
+    }
+
+    public int chooseVictim() {
+        int numFrames = coreMap.getNumFrames();
+
+        // a few guesses almost always find a frame; if not, search from a random
+        // start so that a mostly pinned memory still finds what is left
+        for (int i = 0; i < maxGuesses; i++) {
+            int ppn = Lib.random(numFrames);
+            if (coreMap.isEvictable(ppn))
+                return ppn;
+        }
+
+        int start = Lib.random(numFrames);
+        for (int i = 0; i < numFrames; i++) {
+            int ppn = (start + i) % numFrames;
+            if (coreMap.isEvictable(ppn))
+                return ppn;
+        }
+
+        return -1;
+    }
+
+    private static final int maxGuesses = 4;
+}
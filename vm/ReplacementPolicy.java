@@ -0,0 +1,56 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which page to evict when physical memory is full.
+ *
+ * <p>
+ * The policy is selected by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>, which names a subclass to construct, in
+ * the same way as <tt>ThreadedKernel.scheduler</tt> names the scheduler.
+ * Policies see physical memory through the core map, which records the page in
+ * each frame and whether the frame may be evicted.
+ *
+ * <p>
+ * Every method is called with <tt>VMKernel.memoryLock</tt> held.
+ *
+ * @see nachos.vm.CoreMap
+ */
+public abstract class ReplacementPolicy {
+    /**
+     * Allocate a new replacement policy.
+     */
+    public ReplacementPolicy() {
+    }
+
+    /**
+     * Attach this policy to the core map whose frames it will choose from.
+     * Called once, by the core map's constructor.
+     *
+     * @param coreMap the core map.
+     */
+    public void initialize(CoreMap coreMap) {
+        this.coreMap = coreMap;
+    }
+
+    /**
+     * Notify this policy that a page has just been loaded into a frame. The
+     * default does nothing.
+     *
+     * @param ppn the frame.
+     */
+    public void pageLoaded(int ppn) {
+    }
+
+    /**
+     * Choose a frame to evict. The frame must hold a page and must not be
+     * pinned.
+     *
+     * @return the frame number, or -1 if every frame is free or pinned.
+     */
+    public abstract int chooseVictim();
+
+    /** The core map this policy chooses frames from. */
+    protected CoreMap coreMap;
+}
@@ -0,0 +1,161 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel-wide table of shared memory segments, for the <tt>shmget()</tt>
+ * and <tt>shmat()</tt> syscalls.
+ *
+ * <p>
+ * A segment is a fixed set of wired frames, created zero-filled by the first
+ * <tt>shmget()</tt> of its key. Every process attached to it maps the same
+ * frames, so a store by one is seen at once by the others, with no copying and
+ * no paging. A segment counts the attachments to it, and its frames are freed
+ * when the last one is detached. A segment that has been created but never
+ * attached stays until it is, so that a process can create one for a process
+ * it is about to start.
+ *
+ * <p>
+ * Wired frames cannot be evicted, so the frames of all segments together are
+ * limited to half of physical memory.
+ *
+ * <p>
+ * Every method must be called with <tt>VMKernel.memoryLock</tt> held.
+ */
+public class SharedMemory {
+    /**
+     * Allocate a new, empty table.
+     *
+     * @param maxPages the most frames all segments may hold together.
+     */
+    public SharedMemory(int maxPages) {
+        this.maxPages = maxPages;
+    }
+
+    /**
+     * Find the segment with a key, creating it if there is none.
+     *
+     * @param key      the key identifying the segment.
+     * @param numPages the size of the segment, in pages. An existing segment
+     *                 must be at least this large.
+     * @return the segment, or <tt>null</tt> if it does not exist and cannot be
+     *         created, or is too small.
+     */
+    public Segment get(int key, int numPages) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+
+        Segment segment = byKey.get(key);
+        if (segment != null)
+            return (numPages <= segment.frames.length) ? segment : null;
+
+        if (numPages <= 0 || numPages > maxPages - numWired)
+            return null;
+
+        segment = new Segment(nextId++, key, numPages);
+        for (int i = 0; i < numPages; i++)
+            segment.frames[i] = VMKernel.coreMap.allocateWired();
+        numWired += numPages;
+
+        byKey.put(key, segment);
+        byId.put(segment.id, segment);
+
+        VMKernel.numSegments++;
+        VMKernel.numSegmentPages += numPages;
+
+        return segment;
+    }
+
+    /**
+     * Return the segment with an ID.
+     *
+     * @param id the segment ID returned by <tt>get()</tt>.
+     * @return the segment, or <tt>null</tt> if there is none.
+     */
+    public Segment find(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Record a new attachment to a segment.
+     *
+     * @param segment the segment.
+     */
+    public void attach(Segment segment) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+
+        segment.attachments++;
+        VMKernel.numAttachments++;
+    }
+
+    /**
+     * Record that an attachment to a segment has been removed, and remove the
+     * segment if it was the last.
+     *
+     * @param segment the segment.
+     */
+    public void detach(Segment segment) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+        Lib.assertTrue(segment.attachments > 0);
+
+        if (--segment.attachments > 0)
+            return;
+
+        for (int ppn : segment.frames)
+            VMKernel.coreMap.freeWired(ppn);
+        numWired -= segment.frames.length;
+
+        byKey.remove(segment.key);
+        byId.remove(segment.id);
+    }
+
+    /**
+     * Return the number of segments.
+     *
+     * @return the number of segments.
+     */
+    public int getNumSegments() {
+        return byId.size();
+    }
+
+    /**
+     * A shared memory segment.
+     */
+    public static class Segment {
+        Segment(int id, int key, int numPages) {
+            this.id = id;
+            this.key = key;
+            frames = new int[numPages];
+        }
+
+        /**
+         * Return the size of this segment.
+         *
+         * @return the number of pages.
+         */
+        public int getNumPages() {
+            return frames.length;
+        }
+
+        /**
+         * Return the frame holding a page of this segment.
+         *
+         * @param i the page within the segment.
+         * @return the frame number.
+         */
+        public int getFrame(int i) {
+            return frames[i];
+        }
+
+        final int id, key;
+        final int[] frames;
+        /** The number of process mappings of this segment. */
+        int attachments = 0;
+    }
+
+    private HashMap<Integer, Segment> byKey = new HashMap<Integer, Segment>();
+    private HashMap<Integer, Segment> byId = new HashMap<Integer, Segment>();
+    private int nextId = 1;
+    private int maxPages, numWired = 0;
+}
@@ -0,0 +1,76 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A frame of physical memory mapped by several processes at once. There are two
+ * kinds of shared page:
+ *
+ * <ul>
+ * <li>a read-only page of an executable, kept in the page cache, which may stay
+ * in memory with no processes mapping it; and
+ * <li>a <i>copy-on-write</i> page, left shared between a process and its
+ * children by <tt>fork()</tt> until one of them writes to it.
+ * </ul>
+ *
+ * <p>
+ * The page has the same virtual page number in every process that maps it.
+ * Every field is protected by <tt>VMKernel.memoryLock</tt>.
+ */
+public class SharedPage {
+    /**
+     * Allocate a new shared page.
+     *
+     * @param executable the name of the executable the page belongs to, if it is
+     *                   in the page cache, or <tt>null</tt> if it is
+     *                   copy-on-write.
+     * @param vpn        the virtual page number of the page.
+     * @param ppn        the frame holding the page.
+     */
+    public SharedPage(String executable, int vpn, int ppn) {
+        this.executable = executable;
+        this.vpn = vpn;
+        this.ppn = ppn;
+    }
+
+    /**
+     * Test whether this page is in the page cache.
+     *
+     * @return <tt>true</tt> if this is a page of an executable.
+     */
+    public boolean isCached() {
+        return executable != null;
+    }
+
+    /**
+     * Test whether the frame must be saved to a process's swap slot before the
+     * process stops mapping it. This is unnecessary only if the slot is known to
+     * hold the same data already.
+     *
+     * @param process a process mapping this copy-on-write page.
+     * @return <tt>true</tt> if the page must be written to swap.
+     */
+    boolean mustSave(VMProcess process) {
+        return dirty || !process.isInSwap(vpn);
+    }
+
+    /** The executable, for a cached page; <tt>null</tt> for copy-on-write. */
+    final String executable;
+    final int vpn;
+    final int ppn;
+    /**
+     * For a copy-on-write page, <tt>true</tt> if the page may differ from the
+     * swap slot of the process that shared it.
+     */
+    boolean dirty = false;
+    /**
+     * For a cached page, <tt>true</tt> once its executable has changed. The
+     * page is no longer in the cache, and its frame is freed when the last
+     * process mapping it stops.
+     */
+    boolean stale = false;
+    /** The processes mapping this page; its reference count is their number. */
+    final LinkedList<VMProcess> mappers = new LinkedList<VMProcess>();
+}
@@ -0,0 +1,264 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A file in the kernel's file system that holds pages evicted from physical
+ * memory. The file is divided into page-sized <i>slots</i>.
+ *
+ * <p>
+ * Slots are handed out in contiguous <i>extents</i>, one per process, so that
+ * neighbouring pages of a process have neighbouring slots. A page fault can
+ * then read the faulting page together with the pages predicted to fault next
+ * in a single file operation, which matters because every operation on the
+ * stub file system costs a fixed delay however much it transfers. A transfer
+ * of one page goes directly between the file and main memory; a transfer of
+ * several is staged through a buffer of at most <tt>maxTransfer</tt> pages.
+ * Evicted pages are written one at a time: eviction frees frames one at a
+ * time, so the neighbours of a victim are rarely both resident and dirty.
+ *
+ * <p>
+ * Pages written to the swap file are first compressed into a
+ * <tt>CompressedPool</tt> in the host's memory, and only reach the file when
+ * the pool refuses them or they are pushed out of it. A page read back from
+ * the pool costs no file operation. Pages pushed out of the pool are written
+ * together with the other unsaved pages in neighbouring slots.
+ *
+ * <p>
+ * Except for <tt>close()</tt>, every method must be called with
+ * <tt>VMKernel.memoryLock</tt> held.
+ */
+public class SwapFile {
+    /**
+     * Create a new, empty swap file.
+     *
+     * @param name     the name of the file. Any existing file with this name is
+     *                 truncated.
+     * @param poolSize the capacity of the compressed pool, in bytes; 0 sends
+     *                 every page to the file.
+     */
+    public SwapFile(String name, int poolSize) {
+        this.name = name;
+
+        file = ThreadedKernel.fileSystem.open(name, true);
+        Lib.assertTrue(file != null, "could not create swap file " + name);
+
+        buffer = new byte[maxTransfer * pageSize];
+        pool = new CompressedPool(poolSize);
+    }
+
+    /**
+     * Allocate a contiguous extent of slots. The file grows if no free extent is
+     * large enough.
+     *
+     * @param numSlots the number of slots to allocate.
+     * @return the first slot of the extent.
+     */
+    public int allocate(int numSlots) {
+        Lib.assertTrue(numSlots > 0);
+
+        for (Map.Entry<Integer, Integer> extent : freeExtents.entrySet()) {
+            int first = extent.getKey(), length = extent.getValue();
+            if (length < numSlots)
+                continue;
+
+            freeExtents.remove(first);
+            if (length > numSlots)
+                freeExtents.put(first + numSlots, length - numSlots);
+
+            return first;
+        }
+
+        int first = this.numSlots;
+        this.numSlots += numSlots;
+        return first;
+    }
+
+    /**
+     * Release an extent allocated by <tt>allocate()</tt>, merging it with any
+     * free extents on either side.
+     *
+     * @param first    the first slot of the extent.
+     * @param numSlots the number of slots in the extent.
+     */
+    public void free(int first, int numSlots) {
+        Lib.assertTrue(first >= 0 && numSlots > 0 && first + numSlots <= this.numSlots);
+
+        Map.Entry<Integer, Integer> before = freeExtents.floorEntry(first);
+        if (before != null && before.getKey() + before.getValue() == first) {
+            freeExtents.remove(before.getKey());
+            first = before.getKey();
+            numSlots += before.getValue();
+        }
+
+        for (int slot = first; slot < first + numSlots; slot++)
+            pool.remove(slot);
+
+        Integer after = freeExtents.remove(first + numSlots);
+        if (after != null)
+            numSlots += after;
+
+        freeExtents.put(first, numSlots);
+    }
+
+    /**
+     * Read consecutive slots into frames of physical memory, in at most one file
+     * operation.
+     *
+     * @param slot   the first slot to read.
+     * @param frames the frame to read each slot into, or -1 for a slot that is
+     *               only read because it lies between wanted slots.
+     * @param count  the number of slots to read. At most <tt>maxTransfer</tt>.
+     */
+    public void read(int slot, int[] frames, int count) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+        Lib.assertTrue(count >= 1 && count <= maxTransfer);
+
+        byte[] memory = Machine.processor().getMemory();
+
+        // the wanted slots that are only in the file
+        int first = count, last = -1;
+        for (int i = 0; i < count; i++) {
+            if (frames[i] != -1 && !pool.contains(slot + i)) {
+                first = Math.min(first, i);
+                last = i;
+            }
+        }
+
+        if (first == last) {
+            transfer(false, slot + first, memory, frames[first] * pageSize, pageSize);
+            VMKernel.numSwapReads++;
+        } else if (first < last) {
+            transfer(false, slot + first, buffer, 0, (last - first + 1) * pageSize);
+            for (int i = first; i <= last; i++) {
+                if (frames[i] != -1 && !pool.contains(slot + i))
+                    System.arraycopy(buffer, (i - first) * pageSize, memory, frames[i] * pageSize, pageSize);
+            }
+            VMKernel.numSwapReads++;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (frames[i] != -1) {
+                if (pool.load(slot + i, memory, frames[i] * pageSize))
+                    VMKernel.numPoolHits++;
+                VMKernel.numSwapIns++;
+            }
+        }
+    }
+
+    /**
+     * Write a frame of physical memory into a slot. The page goes to the
+     * compressed pool if it will take it, and otherwise straight to the file.
+     * Either way, pages may be pushed out of the pool to make room.
+     *
+     * @param slot the slot to write.
+     * @param ppn  the frame to write.
+     */
+    public void write(int slot, int ppn) {
+        Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+
+        byte[] memory = Machine.processor().getMemory();
+
+        if (!pool.store(slot, memory, ppn * pageSize)) {
+            transfer(true, slot, memory, ppn * pageSize, pageSize);
+            VMKernel.numSwapWrites++;
+        }
+
+        VMKernel.numSwapOuts++;
+
+        makeRoom();
+    }
+
+    /**
+     * Test whether a slot's page is in the compressed pool, so that reading it
+     * needs no file operation.
+     *
+     * @param slot the slot.
+     * @return <tt>true</tt> if the page can be read from the pool.
+     */
+    public boolean isInPool(int slot) {
+        return pool.contains(slot);
+    }
+
+    /**
+     * Push the least recently used pages out of the compressed pool until it is
+     * within its capacity, writing each one to the file together with the pooled
+     * pages in the slots around it.
+     */
+    private void makeRoom() {
+        while (pool.isOverfull()) {
+            int oldest = pool.getOldest();
+
+            int first = oldest, last = oldest;
+            while (last - first + 1 < maxTransfer && pool.contains(last + 1))
+                last++;
+            while (last - first + 1 < maxTransfer && first > 0 && pool.contains(first - 1))
+                first--;
+
+            for (int s = first; s <= last; s++) {
+                pool.load(s, buffer, (s - first) * pageSize);
+                pool.remove(s);
+            }
+
+            transfer(true, first, buffer, 0, (last - first + 1) * pageSize);
+
+            VMKernel.numPoolSpills += last - first + 1;
+            VMKernel.numSwapWrites++;
+        }
+    }
+
+    private void transfer(boolean write, int slot, byte[] buf, int offset, int length) {
+        int amount;
+        if (write)
+            amount = file.write(slot * pageSize, buf, offset, length);
+        else
+            amount = file.read(slot * pageSize, buf, offset, length);
+
+        Lib.assertTrue(amount == length, "swap file " + (write ? "write" : "read") + " failed");
+    }
+
+    /**
+     * Return the number of slots in the file, including free ones.
+     *
+     * @return the size of the file in pages.
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Return the number of pages in the compressed pool.
+     *
+     * @return the number of pages held in memory rather than in the file.
+     */
+    public int getNumPooled() {
+        return pool.getNumPages();
+    }
+
+    /**
+     * Close and delete the swap file.
+     */
+    public void close() {
+        file.close();
+        ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+    private byte[] buffer;
+    private CompressedPool pool;
+
+    private int numSlots = 0;
+    /** Free extents not at the end of the file, by first slot. */
+    private TreeMap<Integer, Integer> freeExtents = new TreeMap<Integer, Integer>();
+
+    /** The most slots read, or spilled from the pool, in one operation. */
+    public static final int maxTransfer = 8;
+
+    private static final int pageSize = Processor.pageSize;
+}
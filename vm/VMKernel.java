@@ -7,6 +7,28 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Physical memory is shared by all processes through the core map. Pages
+ * evicted from it are kept in a swap file if they cannot be recovered from the
+ * executable. Read-only pages of executables are shared between processes
+ * through the page cache, and pages of forked processes are shared
+ * copy-on-write. Files mapped by <tt>mmap()</tt> are paged to and from the
+ * files themselves, and shared memory segments stay in memory. The core map,
+ * the page cache, the shared memory table, the swap file, and every process's
+ * page table are protected by <tt>memoryLock</tt>.
+ *
+ * <p>
+ * The <tt>nachos.conf</tt> key <tt>VMKernel.replacementPolicy</tt> names the
+ * <tt>ReplacementPolicy</tt> subclass that chooses pages to evict (default
+ * <tt>nachos.vm.ClockPolicy</tt>). <tt>VMKernel.prefetchWindow</tt> is the most
+ * predicted faults a page fault may read early (default 4; 0 disables
+ * prediction), and <tt>VMKernel.workingSetWindow</tt> the number of quanta a
+ * page stays in its process's working set after it was last used (default 4).
+ * <tt>VMKernel.swapPool</tt> is the capacity of the compressed pool in front of
+ * the swap file, in pages of compressed data (default 64; 0 disables it).
+ * <tt>VMKernel.zeroFaultAround</tt> is the size of the aligned group of pages a
+ * store fault on a zero-fill page maps at once (default 4; 1 disables it).
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,6 +43,21 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
         super.initialize(args);
+
+        memoryLock = new Lock();
+        ReplacementPolicy policy = (ReplacementPolicy) Lib
+                .constructObject(Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
+        coreMap = new CoreMap(Machine.processor().getNumPhysPages(), policy);
+        pageCache = new PageCache();
+        sharedMemory = new SharedMemory(Machine.processor().getNumPhysPages() / 2);
+        swapFile = new SwapFile(swapFileName, Config.getInteger("VMKernel.swapPool", 64) * Processor.pageSize);
+
+        prefetchWindow = Config.getInteger("VMKernel.prefetchWindow", 4);
+        workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 4);
+        Lib.assertTrue(prefetchWindow >= 0 && workingSetWindow > 0);
+
+        zeroFaultAround = Config.getInteger("VMKernel.zeroFaultAround", 4);
+        Lib.assertTrue(zeroFaultAround > 0);
     }
 
     /**
@@ -28,6 +65,9 @@ public class VMKernel extends UserKernel {
      */
     public void selfTest() {
         super.selfTest();
+
+        PageCompressor.selfTest();
+        PageTable.selfTest();
     }
 
     /**
@@ -41,9 +81,86 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        System.out.println("Page faults: " + numPageFaults + ", " + faultTicks + " ticks total, "
+                + ((numPageFaults == 0) ? 0 : faultTicks / numPageFaults) + " average, " + maxFaultTicks
+                + " max");
+        System.out.println("Page sources: coff " + numCoffLoads + ", zero-fill " + numZeroFills + " (" + numZeroPageMaps
+                + " zero page maps), swap " + numSwapIns);
+        if (numPrefetched > 0)
+            System.out.println("Prefetch: " + numPrefetched + " predicted pages read, " + numPrefetchHits
+                    + " of them used");
+        if (numFaultArounds > 0)
+            System.out.println("Zero-fill fault-around: " + numFaultAroundPages + " pages mapped by "
+                    + numFaultArounds + " store faults");
+        if (numCacheHits > 0 || numCacheMisses > 0 || numCopiesOnWrite > 0)
+            System.out.println("Page cache: " + numCacheHits + " hits, " + numCacheMisses + " misses, "
+                    + pageCache.getNumPages() + " pages cached, " + numCacheInvalidations + " dropped; "
+                    + numCopiesOnWrite + " copies on write");
+        if (numMappedIns > 0 || numMappedOuts > 0)
+            System.out.println("Mapped files: ins " + numMappedIns + " in " + numMappedReads + " reads, outs "
+                    + numMappedOuts + " in " + numMappedWrites + " writes");
+        if (numSegments > 0)
+            System.out.println("Shared memory: " + numSegments + " segments created, " + numSegmentPages
+                    + " pages, " + numAttachments + " attachments, " + sharedMemory.getNumSegments() + " left");
+        System.out.println("Replacement: " + coreMap.getPolicy().getClass().getName() + ", " + numEvictions
+                + " evictions, " + numClockSteps + " clock steps");
+        if (numSwapOuts > 0)
+            System.out.println("Swap: ins " + numSwapIns + " in " + numSwapReads + " reads, outs " + numSwapOuts
+                    + " in " + numSwapWrites + " writes, " + swapFile.getNumSlots() + " slots");
+        if (numPoolStores > 0 || numPoolRejects > 0)
+            System.out.println("Compressed swap: " + numPoolStores + " pages stored (" + numPoolZeroPages
+                    + " zero, " + numPoolFilledPages + " same-filled) in " + poolBytesOut + " bytes, "
+                    + ((poolBytesIn == 0) ? 0 : poolBytesOut * 100 / poolBytesIn) + "% of their size; "
+                    + numPoolRejects + " refused, " + numPoolSpills + " spilled, " + swapFile.getNumPooled()
+                    + " left; ins " + numPoolHits + " from pool, " + (numSwapIns - numPoolHits) + " from file");
+
+        swapFile.close();
+
         super.terminate();
     }
 
+    /** Protects the core map, the swap file, and all page tables. */
+    public static Lock memoryLock;
+
+    /** Globally accessible map of which page is in each frame. */
+    public static CoreMap coreMap;
+
+    /** Globally accessible cache of shared executable pages. */
+    public static PageCache pageCache;
+
+    /** Globally accessible table of shared memory segments. */
+    public static SharedMemory sharedMemory;
+
+    /** Globally accessible swap file. */
+    public static SwapFile swapFile;
+
+    /** The most predicted faults one page fault may read early. */
+    static int prefetchWindow;
+    /** The number of quanta a page stays in a working set after its last use. */
+    static int workingSetWindow;
+    /** The size of the group of zero-fill pages a store fault maps. */
+    static int zeroFaultAround;
+    /** The sum of the working sets of all processes, as last sampled. */
+    static int totalWorkingSet = 0;
+
+    // paging statistics, reported by terminate()
+    static int numPageFaults = 0;
+    static long faultTicks = 0, maxFaultTicks = 0;
+    static int numCoffLoads = 0, numZeroFills = 0, numZeroPageMaps = 0;
+    static int numEvictions = 0, numClockSteps = 0;
+    static int numSwapIns = 0, numSwapReads = 0;
+    static int numPrefetched = 0, numPrefetchHits = 0;
+    static int numFaultArounds = 0, numFaultAroundPages = 0;
+    static int numSwapOuts = 0, numSwapWrites = 0;
+    static int numPoolStores = 0, numPoolZeroPages = 0, numPoolFilledPages = 0, numPoolRejects = 0;
+    static int numPoolHits = 0, numPoolSpills = 0;
+    static long poolBytesIn = 0, poolBytesOut = 0;
+    static int numCacheHits = 0, numCacheMisses = 0, numCacheInvalidations = 0, numCopiesOnWrite = 0;
+    static int numSegments = 0, numSegmentPages = 0, numAttachments = 0;
+    static int numMappedIns = 0, numMappedReads = 0, numMappedOuts = 0, numMappedWrites = 0;
+
+    private static final String swapFileName = "swap";
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
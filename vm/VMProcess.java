@@ -5,8 +5,95 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No page is brought into memory until it is first touched. A TLB miss on a
+ * page that is not resident is a <i>page fault</i>: the page is read from the
+ * swap file if it has been swapped out, from its COFF section if it belongs to
+ * an initialized one, and is otherwise (stack, bss and arguments) filled with
+ * zeros. Pages of read-only sections are taken from the page cache, so that
+ * processes running the same executable share one copy of its text.
+ *
+ * <p>
+ * A page that would be filled with zeros is only given a frame of its own if
+ * the faulting instruction is a store. A load maps the kernel's zero page
+ * instead, copy-on-write, so memory that is read before it is written costs no
+ * frame until the first store. The processor does not say whether a TLB miss
+ * was caused by a load or a store, so the instruction is decoded to find out.
+ *
+ * <p>
+ * <tt>fork()</tt> shares every resident page of the parent with the child,
+ * copy-on-write, and first reads in any page the parent has swapped out, since
+ * the child cannot use the parent's swap slots. Pages the parent has never
+ * touched are loaded by the child from the same place the parent would load
+ * them.
+ *
+ * <p>
+ * <tt>mmap()</tt> maps a file at page-aligned addresses above the program. The
+ * pages of a mapped file are read from the file when first touched, together
+ * with the untouched pages after them, as many as the swap file would move in
+ * one operation. A dirty mapped page is written back to the file, never to swap,
+ * when it is evicted and when the file is closed or the process exits. Mappings
+ * are not inherited by <tt>fork()</tt>.
+ *
+ * <p>
+ * <tt>shmat()</tt> maps a shared memory segment at page-aligned addresses above
+ * the program, in the same way. The segment's frames are wired, so its pages
+ * are mapped straight away and never fault. Segment mappings are inherited by
+ * <tt>fork()</tt>, at the same addresses.
+ *
+ * <p>
+ * The first time one of its pages is swapped out, the process is given an
+ * extent of swap slots covering its whole address space, so that page
+ * <i>vpn</i> always goes to slot <tt>swapBase + vpn</tt>. Pages are evicted,
+ * and written to swap, one at a time.
+ *
+ * <p>
+ * A fault on a swapped-out page can also read pages the process is predicted to
+ * fault on next, as long as their slots lie within the same operation: each
+ * fault remembers the page that faulted after it last time, so a loop that
+ * faults through the same pages in the same order has its next faults read
+ * early, and a fault that repeats the stride of the previous one predicts
+ * further faults at that stride. At most <tt>VMKernel.prefetchWindow</tt> pages
+ * are predicted per fault, and they may evict other pages to make room.
+ *
+ * <p>
+ * Every time the process is switched out, which happens at least on every
+ * timer interrupt while it runs, the used bits of its TLB entries are
+ * harvested. This marks the end of one unit of the process's <i>virtual
+ * time</i>. A page used within the last <tt>VMKernel.workingSetWindow</tt> units
+ * is in its working set. The size of the working set and of the resident set
+ * are sampled at the same time. They are reported, with the process's fault
+ * and prefetch counts, when it exits, under the debug flag <tt>v</tt>.
+ *
+ * <p>
+ * A store fault on a page that is zero-filled also maps, zero-filled, the other
+ * pages of its aligned group of <tt>VMKernel.zeroFaultAround</tt> pages that
+ * would be zero-filled and are not resident, as long as there are free frames
+ * for them. A program that writes one page of its stack or bss usually goes on
+ * to write its neighbours, and this saves their faults. The pages are mapped
+ * in separate frames and evicted one by one like any other.
+ *
+ * <p>
+ * Translations are kept in a sparse <tt>PageTable</tt>, which holds the
+ * program's pages and the pages of mapped files alike, and has no entries for
+ * the gaps between sections, the guard pages below the stack, or the space
+ * between the program and its mappings. A TLB miss on one of those kills the
+ * process if it is below the top of the stack.
+ *
+ * <p>
+ * The page table records the state of every page; the TLB holds copies of some
+ * of its entries. The used and dirty bits set by the processor in the TLB are
+ * copied back to the page table whenever a TLB entry is replaced, whenever this
+ * process is switched out, and before one of its pages is evicted. The process
+ * remembers which page it put in each TLB entry, so it never has to read the
+ * TLB to find a free entry or a page's entry, and when it is switched back in
+ * the TLB is reloaded with those pages rather than left to miss on each.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -22,14 +109,47 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
         super.saveState();
+
+        Processor processor = Machine.processor();
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            if (getTLBPage(i) != -1)
+                syncTLBEntry(i);
+        }
+
+        sampleWorkingSet();
+        virtualTime++;
+    }
+
+    /**
+     * Measure the resident set and the working set at the end of a unit of
+     * virtual time, once this unit's used bits have been harvested.
+     */
+    private void sampleWorkingSet() {
+        int resident = 0, workingSet = 0;
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            TranslationEntry entry = pages.get(vpn);
+            if (entry != null && entry.valid)
+                resident++;
+            if (lastUsed[vpn] > virtualTime - VMKernel.workingSetWindow)
+                workingSet++;
+        }
+
+        peakResident = Math.max(peakResident, resident);
+        peakWorkingSet = Math.max(peakWorkingSet, workingSet);
+        totalWorkingSet += workingSet;
+
+        VMKernel.totalWorkingSet += workingSet - currentWorkingSet;
+        currentWorkingSet = workingSet;
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The TLB still holds the previous process's
+     * translations, so it is reloaded with the entries this process had in it
+     * when it was switched out, as far as their pages are still resident.
      */
     public void restoreState() {
-        super.restoreState();
+        prefillTLB();
     }
 
     /**
@@ -39,14 +159,509 @@ public class VMProcess extends UserProcess {
      * @return <tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-        return super.loadSections();
+        pages = new PageTable();
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            if (isProgramPage(vpn))
+                pages.put(vpn, new TranslationEntry(vpn, -1, false, false, false, false));
+        }
+
+        // pages of uninitialized sections are zero-filled like the stack
+        pageSections = new CoffSection[numPages];
+        for (int s = 0; s < coff.getNumSections(); s++) {
+            CoffSection section = coff.getSection(s);
+
+            for (int i = 0; i < section.getLength(); i++) {
+                int vpn = section.getFirstVPN() + i;
+
+                if (section.isInitialzed())
+                    pageSections[vpn] = section;
+                pages.get(vpn).readOnly = section.isReadOnly();
+            }
+        }
+
+        initPagingState();
+
+        return true;
+    }
+
+    /**
+     * Allocate the per-page state used for swapping, prefetching and working set
+     * tracking.
+     */
+    private void initPagingState() {
+        inSwap = new boolean[numPages];
+        prefetched = new boolean[numPages];
+
+        nextFault = new int[numPages];
+        Arrays.fill(nextFault, -1);
+
+        lastUsed = new int[numPages];
+        Arrays.fill(lastUsed, Integer.MIN_VALUE / 2);
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-        super.unloadSections();
+        VMKernel.memoryLock.acquire();
+
+        while (!mappings.isEmpty())
+            unmap(mappings.getFirst());
+        while (!attachments.isEmpty())
+            detach(attachments.getFirst());
+
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            TranslationEntry entry = pages.get(vpn);
+            if (entry == null || !entry.valid)
+                continue;
+
+            entry.valid = false;
+            if (VMKernel.coreMap.isZeroPage(entry.ppn))
+                continue;
+            else if (VMKernel.coreMap.getSharedPage(entry.ppn) != null)
+                VMKernel.coreMap.unmap(this, entry.ppn);
+            else
+                VMKernel.coreMap.free(entry.ppn);
+        }
+
+        if (swapBase != -1) {
+            VMKernel.swapFile.free(swapBase, numPages);
+            swapBase = -1;
+        }
+
+        VMKernel.memoryLock.release();
+
+        VMKernel.totalWorkingSet -= currentWorkingSet;
+        currentWorkingSet = 0;
+
+        Lib.debug(dbgVM, "VMProcess " + executableName + ": " + numFaults + " faults, " + numPrefetches
+                + " pages prefetched, " + numPrefetchHits + " used; resident set peak " + peakResident
+                + "; working set peak " + peakWorkingSet + ", average "
+                + ((virtualTime == 0) ? 0 : totalWorkingSet / virtualTime) + " over " + virtualTime + " quanta");
+
+        closeCoff();
+    }
+
+    /**
+     * Give this process, which has just been created by <tt>fork()</tt>, a
+     * copy-on-write copy of its parent's address space.
+     */
+    protected boolean copyAddressSpace(UserProcess parent) {
+        VMProcess vmParent = (VMProcess) parent;
+
+        copyProgram(parent);
+
+        pages = new PageTable();
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            TranslationEntry entry = vmParent.pages.get(vpn);
+            if (entry != null)
+                pages.put(vpn, new TranslationEntry(vpn, -1, false, entry.readOnly, false, false));
+        }
+
+        pageSections = vmParent.pageSections;
+        initPagingState();
+
+        VMKernel.memoryLock.acquire();
+
+        vmParent.collectTLBBits();
+
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            TranslationEntry entry = vmParent.pages.get(vpn);
+            if (entry == null)
+                continue;
+
+            TranslationEntry childEntry = pages.get(vpn);
+            if (!entry.valid && vmParent.inSwap[vpn])
+                vmParent.pageIn(vpn, true, false);
+            if (!entry.valid)
+                continue;
+
+            if (VMKernel.coreMap.isZeroPage(entry.ppn)) {
+                childEntry.ppn = entry.ppn;
+                childEntry.valid = true;
+                childEntry.readOnly = true;
+                copyOnWrite[vpn] = true;
+                continue;
+            }
+
+            SharedPage page = VMKernel.coreMap.getSharedPage(entry.ppn);
+            if (page == null) {
+                page = new SharedPage(null, vpn, entry.ppn);
+                page.dirty = entry.dirty;
+                page.mappers.add(vmParent);
+                VMKernel.coreMap.share(entry.ppn, page);
+
+                entry.dirty = false;
+                if (!entry.readOnly) {
+                    entry.readOnly = true;
+                    vmParent.copyOnWrite[vpn] = true;
+                }
+            }
+
+            page.mappers.add(this);
+            childEntry.ppn = entry.ppn;
+            childEntry.valid = true;
+            childEntry.readOnly = true;
+            copyOnWrite[vpn] = vmParent.copyOnWrite[vpn];
+        }
+
+        for (Attachment attachment : vmParent.attachments)
+            attach(attachment.segment, attachment.firstVPN);
+
+        // the parent's TLB may still allow writes to pages that are now shared
+        vmParent.prefillTLB();
+
+        VMKernel.memoryLock.release();
+
+        return true;
+    }
+
+    /**
+     * Give this process its own copy of a copy-on-write page.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+        VMKernel.memoryLock.acquire();
+
+        copyPage(vpn);
+
+        VMKernel.memoryLock.release();
+        return true;
+    }
+
+    /**
+     * Give this process its own writable copy of a copy-on-write page, bringing
+     * the page into memory if necessary. If the frame is still shared, the page is
+     * copied into a new frame, or for the zero page a new frame is cleared;
+     * otherwise the frame is made writable. Must be called with
+     * <tt>VMKernel.memoryLock</tt> held.
+     *
+     * @param vpn the copy-on-write page.
+     */
+    private void copyPage(int vpn) {
+        TranslationEntry entry = pages.get(vpn);
+        Lib.assertTrue(copyOnWrite[vpn] && entry.readOnly);
+
+        if (!entry.valid)
+            pageIn(vpn, true, true);
+
+        int oldPPN = entry.ppn;
+        if (VMKernel.coreMap.isZeroPage(oldPPN)) {
+            int ppn = VMKernel.coreMap.allocate(this, vpn);
+
+            byte[] memory = Machine.processor().getMemory();
+            Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+
+            // still all zeros, so it need not be saved until it is written
+            entry.ppn = ppn;
+            entry.dirty = false;
+            VMKernel.coreMap.unpin(ppn);
+
+            VMKernel.numZeroFills++;
+        } else if (VMKernel.coreMap.getSharedPage(oldPPN) != null) {
+            VMKernel.coreMap.pin(oldPPN);
+            int ppn = VMKernel.coreMap.allocate(this, vpn);
+
+            byte[] memory = Machine.processor().getMemory();
+            System.arraycopy(memory, oldPPN * pageSize, memory, ppn * pageSize, pageSize);
+
+            VMKernel.coreMap.unpin(oldPPN);
+            VMKernel.coreMap.unmap(this, oldPPN);
+
+            entry.ppn = ppn;
+            entry.dirty = true;
+            VMKernel.coreMap.unpin(ppn);
+
+            VMKernel.numCopiesOnWrite++;
+        }
+
+        entry.readOnly = false;
+        copyOnWrite[vpn] = false;
+
+        if (UserKernel.currentProcess() == this)
+            invalidateTLBEntry(vpn);
+    }
+
+    /**
+     * Return the translation for a page the kernel is about to access, faulting
+     * it in if necessary. The page is pinned in memory until
+     * <tt>releasePage()</tt>.
+     */
+    protected TranslationEntry lookupPage(int vpn, boolean write) {
+        TranslationEntry entry = getEntry(vpn);
+        if (entry == null)
+            return null;
+
+        boolean cow = (vpn < numPages && copyOnWrite[vpn]);
+        if (write && entry.readOnly && !cow)
+            return null;
+
+        VMKernel.memoryLock.acquire();
+
+        if (write && cow)
+            copyPage(vpn);
+
+        if (entry.valid) {
+            VMKernel.coreMap.pin(entry.ppn);
+            notePrefetchUse(vpn);
+        } else {
+            pageIn(vpn, false, write);
+        }
+
+        entry.used = true;
+        if (write)
+            entry.dirty = true;
+
+        VMKernel.memoryLock.release();
+
+        return entry;
+    }
+
+    /**
+     * Unpin a page pinned by <tt>lookupPage()</tt>.
+     */
+    protected void releasePage(int vpn) {
+        VMKernel.memoryLock.acquire();
+
+        TranslationEntry entry = getEntry(vpn);
+        Lib.assertTrue(entry.valid);
+        VMKernel.coreMap.unpin(entry.ppn);
+
+        VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Test whether the kernel may access a page, which may be a page of a mapped
+     * file.
+     */
+    protected boolean isAccessible(int vpn, boolean write) {
+        TranslationEntry entry = getEntry(vpn);
+        if (entry == null)
+            return false;
+
+        return !write || !entry.readOnly || (vpn < numPages && copyOnWrite[vpn]);
+    }
+
+    /**
+     * Map an open file into memory at a page-aligned address above the program.
+     * The whole file is mapped, rounded up to a page; the part of the last page
+     * beyond the end of the file reads as zeros and is never written back. No
+     * page is read until it is touched.
+     */
+    protected int handleMmap(int descriptorId, int address) {
+        MyFileDescriptor fd = getFileDescriptor(descriptorId);
+        if (fd == null || isMapped(descriptorId))
+            return -1;
+
+        int length = fd.getFile().length();
+        if (length < 0)
+            return -1;
+
+        if (address < numPages * pageSize || Processor.offsetFromAddress(address) != 0)
+            return -1;
+
+        int firstVPN = Processor.pageFromAddress(address);
+        int count = (length + pageSize - 1) / pageSize;
+        if ((long) address + (long) count * pageSize > Integer.MAX_VALUE)
+            return -1;
+
+        if (!pages.isFree(firstVPN, count))
+            return -1;
+
+        MappedFile mapping = new MappedFile(descriptorId, fd.getFile(), firstVPN, length);
+
+        VMKernel.memoryLock.acquire();
+        mappings.add(mapping);
+        for (int i = 0; i < count; i++)
+            pages.put(firstVPN + i, mapping.pages[i]);
+        VMKernel.memoryLock.release();
+
+        return length;
+    }
+
+    protected boolean isMapped(int descriptorId) {
+        for (MappedFile mapping : mappings) {
+            if (mapping.descriptorId == descriptorId)
+                return true;
+        }
+
+        return false;
+    }
+
+    protected void unmapFile(int descriptorId) {
+        VMKernel.memoryLock.acquire();
+
+        for (MappedFile mapping : mappings) {
+            if (mapping.descriptorId == descriptorId) {
+                unmap(mapping);
+                break;
+            }
+        }
+
+        VMKernel.memoryLock.release();
+    }
+
+    protected void fileChanged(String name) {
+        VMKernel.memoryLock.acquire();
+        VMKernel.pageCache.invalidate(name);
+        VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Remove a mapping, writing its dirty pages back to the file in runs of
+     * adjacent pages and freeing its frames. Must be called with
+     * <tt>VMKernel.memoryLock</tt> held.
+     *
+     * @param mapping the mapping to remove.
+     */
+    private void unmap(MappedFile mapping) {
+        if (UserKernel.currentProcess() == this) {
+            for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+                if (getTLBPage(i) != -1 && mapping.contains(getTLBPage(i))) {
+                    syncTLBEntry(i);
+                    clearTLBEntry(i);
+                }
+            }
+        }
+
+        int[] frames = new int[maxFileRun];
+
+        for (int i = 0; i < mapping.pages.length;) {
+            int count = 0;
+            while (i + count < mapping.pages.length && count < maxFileRun && mapping.pages[i + count].valid
+                    && mapping.pages[i + count].dirty) {
+                frames[count] = mapping.pages[i + count].ppn;
+                count++;
+            }
+
+            if (count > 0)
+                writeMapped(mapping, mapping.firstVPN + i, frames, count);
+
+            i += Math.max(count, 1);
+        }
+
+        for (TranslationEntry entry : mapping.pages) {
+            if (entry.valid) {
+                entry.valid = false;
+                VMKernel.coreMap.free(entry.ppn);
+            }
+        }
+
+        mappings.remove(mapping);
+        for (int i = 0; i < mapping.pages.length; i++)
+            pages.remove(mapping.firstVPN + i);
+    }
+
+    /**
+     * Find or create a shared memory segment, of at least <i>size</i> bytes
+     * rounded up to a page.
+     */
+    protected int handleShmget(int key, int size) {
+        if (size <= 0)
+            return -1;
+
+        VMKernel.memoryLock.acquire();
+        SharedMemory.Segment segment = VMKernel.sharedMemory.get(key, (size + pageSize - 1) / pageSize);
+        VMKernel.memoryLock.release();
+
+        return (segment == null) ? -1 : segment.id;
+    }
+
+    /**
+     * Map a shared memory segment at a page-aligned address above the program.
+     * Its pages are always resident, so the mapping is complete at once.
+     */
+    protected int handleShmat(int id, int address) {
+        if (address < numPages * pageSize || Processor.offsetFromAddress(address) != 0)
+            return -1;
+
+        VMKernel.memoryLock.acquire();
+
+        SharedMemory.Segment segment = VMKernel.sharedMemory.find(id);
+        int firstVPN = Processor.pageFromAddress(address);
+        if (segment == null || (long) address + (long) segment.getNumPages() * pageSize > Integer.MAX_VALUE
+                || !pages.isFree(firstVPN, segment.getNumPages())) {
+            VMKernel.memoryLock.release();
+            return -1;
+        }
+
+        attach(segment, firstVPN);
+
+        VMKernel.memoryLock.release();
+        return address;
+    }
+
+    /**
+     * Remove the mapping of a shared memory segment.
+     */
+    protected int handleShmdt(int address) {
+        VMKernel.memoryLock.acquire();
+
+        int result = -1;
+        for (Attachment attachment : attachments) {
+            if (attachment.firstVPN * pageSize == address) {
+                detach(attachment);
+                result = 0;
+                break;
+            }
+        }
+
+        VMKernel.memoryLock.release();
+        return result;
+    }
+
+    /**
+     * Key a futex in a shared memory segment by the segment and its offset
+     * there, so that it is the same futex in every process attached to it.
+     */
+    protected FutexTable.Key getFutexKey(int vaddr) {
+        int vpn = Processor.pageFromAddress(vaddr);
+
+        VMKernel.memoryLock.acquire();
+
+        for (Attachment attachment : attachments) {
+            if (vpn >= attachment.firstVPN && vpn < attachment.firstVPN + attachment.segment.getNumPages()) {
+                VMKernel.memoryLock.release();
+                return new FutexTable.Key(attachment.segment, vaddr - attachment.firstVPN * pageSize);
+            }
+        }
+
+        VMKernel.memoryLock.release();
+
+        return super.getFutexKey(vaddr);
+    }
+
+    /**
+     * Map every page of a shared memory segment. Must be called with
+     * <tt>VMKernel.memoryLock</tt> held.
+     *
+     * @param segment  the segment.
+     * @param firstVPN the page to map the start of the segment at.
+     */
+    private void attach(SharedMemory.Segment segment, int firstVPN) {
+        for (int i = 0; i < segment.getNumPages(); i++)
+            pages.put(firstVPN + i, new TranslationEntry(firstVPN + i, segment.getFrame(i), true, false, false, false));
+
+        attachments.add(new Attachment(segment, firstVPN));
+        VMKernel.sharedMemory.attach(segment);
+    }
+
+    /**
+     * Remove the mapping of a shared memory segment, which may then be removed
+     * itself. Must be called with <tt>VMKernel.memoryLock</tt> held.
+     *
+     * @param attachment the mapping.
+     */
+    private void detach(Attachment attachment) {
+        int numSegmentPages = attachment.segment.getNumPages();
+
+        for (int vpn = attachment.firstVPN; vpn < attachment.firstVPN + numSegmentPages; vpn++) {
+            if (UserKernel.currentProcess() == this)
+                invalidateTLBEntry(vpn);
+            pages.remove(vpn);
+        }
+
+        attachments.remove(attachment);
+        VMKernel.sharedMemory.detach(attachment.segment);
     }
 
     /**
@@ -60,12 +675,700 @@ public class VMProcess extends UserProcess {
         Processor processor = Machine.processor();
 
         switch (cause) {
+        case Processor.exceptionTLBMiss:
+            int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+            if (getEntry(vpn) == null) {
+                handleUnmappedFault(vpn);
+                break;
+            }
+
+            handleTLBMiss(vpn);
+            break;
+
         default:
             super.handleException(cause);
             break;
         }
     }
 
+    /**
+     * Put the translation for a page into the TLB, faulting the page in first if
+     * it is not resident.
+     *
+     * <p>
+     * A miss on a resident page does not take <tt>VMKernel.memoryLock</tt>. Pages
+     * are only made invalid with the lock held, and nothing between testing the
+     * entry and loading it into the TLB can enable interrupts, so no other thread
+     * can evict the page in between. Taking the lock here would hand it from one
+     * process to the next on every miss, and since the TLB is shared by every
+     * process, processes sharing the processor could then spend all their time
+     * refilling it.
+     *
+     * @param vpn the page the processor could not translate.
+     */
+    private void handleTLBMiss(int vpn) {
+        TranslationEntry entry = getEntry(vpn);
+
+        if (entry.valid) {
+            notePrefetchUse(vpn);
+            refillTLB(entry);
+            return;
+        }
+
+        // only a page that would be zero-filled cares whether this is a store;
+        // the instruction must be read before taking the lock
+        boolean store = isZeroFill(vpn) && isStoreFault();
+
+        VMKernel.memoryLock.acquire();
+
+        if (!entry.valid)
+            pageIn(vpn, true, store);
+
+        refillTLB(entry);
+
+        VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Count the first use of a page that was read in before it was needed.
+     *
+     * @param vpn the resident page being used.
+     */
+    private void notePrefetchUse(int vpn) {
+        if (vpn < numPages && prefetched[vpn]) {
+            prefetched[vpn] = false;
+            numPrefetchHits++;
+            VMKernel.numPrefetchHits++;
+        }
+    }
+
+    /**
+     * Test whether a page that is not resident would be filled with zeros when
+     * faulted in: it belongs to the stack or to an uninitialized section, and has
+     * never been saved to swap.
+     *
+     * @param vpn the page.
+     * @return <tt>true</tt> if the page has never held anything but zeros.
+     */
+    private boolean isZeroFill(int vpn) {
+        return vpn >= 0 && vpn < numPages && pageSections[vpn] == null && !inSwap[vpn];
+    }
+
+    /**
+     * Test whether the instruction that caused the current exception is a store.
+     * The program counter still points at it.
+     *
+     * @return <tt>true</tt> if the faulting instruction writes to memory.
+     */
+    private boolean isStoreFault() {
+        Processor processor = Machine.processor();
+
+        int pc = processor.readRegister(Processor.regPC);
+        if (pc == processor.readRegister(Processor.regBadVAddr))
+            return false;
+
+        byte[] instruction = new byte[4];
+        if (readVirtualMemory(pc, instruction) != 4)
+            return false;
+
+        switch (Lib.bytesToInt(instruction, 0) >>> 26) {
+        case opSB:
+        case opSH:
+        case opSWL:
+        case opSW:
+        case opSWR:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Bring a page into memory. Must be called with <tt>VMKernel.memoryLock</tt>
+     * held.
+     *
+     * @param vpn   the page to bring in.
+     * @param unpin <tt>true</tt> if the page may be evicted once it is in,
+     *              <tt>false</tt> if it should be left pinned.
+     * @param write <tt>true</tt> if the page is about to be written, so that a
+     *              page of zeros needs a frame of its own rather than the zero
+     *              page.
+     */
+    private void pageIn(int vpn, boolean unpin, boolean write) {
+        long start = Machine.timer().getTime();
+
+        MappedFile mapping = findMapping(vpn);
+        CoffSection section = (mapping == null) ? pageSections[vpn] : null;
+        boolean shared = (section != null && section.isReadOnly());
+
+        int ppn = shared ? VMKernel.pageCache.map(this, executableName, vpn) : -1;
+
+        TranslationEntry entry = getEntry(vpn);
+
+        if (mapping == null)
+            recordFault(vpn);
+
+        if (mapping != null) {
+            ppn = VMKernel.coreMap.allocate(this, vpn);
+            readMapped(mapping, vpn, ppn);
+        } else if (ppn != -1) {
+            // another process running the same executable has already loaded it
+            VMKernel.coreMap.pin(ppn);
+        } else if (!write && isZeroFill(vpn)) {
+            ppn = VMKernel.coreMap.getZeroPage();
+            VMKernel.coreMap.pin(ppn);
+
+            entry.readOnly = true;
+            copyOnWrite[vpn] = true;
+            VMKernel.numZeroPageMaps++;
+        } else {
+            ppn = VMKernel.coreMap.allocate(this, vpn);
+
+            if (inSwap[vpn]) {
+                readSwap(vpn, ppn);
+            } else if (section != null) {
+                section.loadPage(vpn - section.getFirstVPN(), ppn);
+                VMKernel.numCoffLoads++;
+
+                if (shared)
+                    VMKernel.pageCache.insert(this, executableName, vpn, ppn);
+            } else {
+                byte[] memory = Machine.processor().getMemory();
+                Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+                VMKernel.numZeroFills++;
+
+                faultAround(vpn);
+            }
+        }
+
+        entry.ppn = ppn;
+        entry.valid = true;
+        entry.used = false;
+        entry.dirty = false;
+
+        if (unpin)
+            VMKernel.coreMap.unpin(ppn);
+
+        long ticks = Machine.timer().getTime() - start;
+        VMKernel.numPageFaults++;
+        VMKernel.faultTicks += ticks;
+        VMKernel.maxFaultTicks = Math.max(VMKernel.maxFaultTicks, ticks);
+    }
+
+    /**
+     * Map the other pages of the aligned group of
+     * <tt>VMKernel.zeroFaultAround</tt> pages holding a page a store has just
+     * faulted in zero-filled, if they would also be zero-filled and are not
+     * resident. Only free frames are used: nothing is evicted for a page that
+     * may never be touched. Must be called with <tt>VMKernel.memoryLock</tt>
+     * held.
+     *
+     * @param vpn the page that was faulted in.
+     */
+    private void faultAround(int vpn) {
+        int size = VMKernel.zeroFaultAround;
+        int first = vpn - vpn % size;
+        int count = 0;
+
+        for (int p = first; p < first + size && p < numPages; p++) {
+            TranslationEntry entry = pages.get(p);
+            if (p == vpn || entry == null || entry.valid || entry.readOnly || !isZeroFill(p))
+                continue;
+            if (UserKernel.frameAllocator.getNumFree() == 0)
+                break;
+
+            int ppn = VMKernel.coreMap.allocate(this, p);
+
+            byte[] memory = Machine.processor().getMemory();
+            Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+
+            entry.ppn = ppn;
+            entry.valid = true;
+            entry.used = false;
+            entry.dirty = false;
+
+            VMKernel.coreMap.unpin(ppn);
+            count++;
+        }
+
+        if (count > 0) {
+            VMKernel.numFaultArounds++;
+            VMKernel.numFaultAroundPages += count;
+            VMKernel.numZeroFills += count;
+        }
+    }
+
+    /**
+     * Record a page fault, for the prediction of later faults.
+     *
+     * @param vpn the page that faulted.
+     */
+    private void recordFault(int vpn) {
+        numFaults++;
+
+        if (lastFault != -1) {
+            int stride = vpn - lastFault;
+            strideRepeated = (stride == lastStride);
+            lastStride = stride;
+
+            nextFault[lastFault] = vpn;
+        }
+
+        lastFault = vpn;
+    }
+
+    /**
+     * Predict the pages this process will fault on after a page: further pages
+     * at the last stride, if the stride has just repeated, and otherwise the
+     * pages that faulted after this one last time.
+     *
+     * @param vpn         the page faulting now.
+     * @param predictions receives the predicted pages.
+     * @return the number of pages predicted.
+     */
+    private int predictFaults(int vpn, int[] predictions) {
+        int count = 0;
+
+        if (strideRepeated && lastStride != 0) {
+            for (int p = vpn + lastStride; count < predictions.length && p >= 0 && p < numPages; p += lastStride)
+                predictions[count++] = p;
+            return count;
+        }
+
+        for (int p = nextFault[vpn]; count < predictions.length && p != -1 && p != vpn; p = nextFault[p])
+            predictions[count++] = p;
+
+        return count;
+    }
+
+    /**
+     * Read a page from the swap file, together with any predicted faults whose
+     * slots lie close enough to be read in the same operation into frames that
+     * no working set is using. Must be called with <tt>VMKernel.memoryLock</tt>
+     * held.
+     *
+     * @param vpn the page being faulted in.
+     * @param ppn the frame allocated for it.
+     */
+    private void readSwap(int vpn, int ppn) {
+        // no file operation to share if the page is still in the compressed pool
+        if (VMKernel.swapFile.isInPool(swapBase + vpn)) {
+            VMKernel.swapFile.read(swapBase + vpn, new int[] { ppn }, 1);
+            return;
+        }
+
+        int spare = Math.max(UserKernel.frameAllocator.getNumFree(),
+                VMKernel.coreMap.getNumFrames() - VMKernel.totalWorkingSet);
+
+        int[] predictions = new int[VMKernel.prefetchWindow];
+        int numPredicted = predictFaults(vpn, predictions);
+
+        // keep the predictions that widen the operation no further than it can go
+        int first = vpn, last = vpn;
+        int numKept = 0;
+        for (int i = 0; i < numPredicted && spare > 0; i++) {
+            int p = predictions[i];
+            if (!isSwappedOut(p) || (p >= first && p <= last))
+                continue;
+            if (Math.max(last, p) - Math.min(first, p) + 1 > SwapFile.maxTransfer)
+                continue;
+
+            first = Math.min(first, p);
+            last = Math.max(last, p);
+            predictions[numKept++] = p;
+            spare--;
+        }
+
+        // slots in between that are not wanted are read but not installed
+        int count = last - first + 1;
+        int[] frames = new int[count];
+        Arrays.fill(frames, -1);
+
+        frames[vpn - first] = ppn;
+        for (int i = 0; i < numKept; i++)
+            frames[predictions[i] - first] = VMKernel.coreMap.allocate(this, predictions[i]);
+
+        VMKernel.swapFile.read(swapBase + first, frames, count);
+
+        for (int i = 0; i < count; i++) {
+            if (first + i == vpn || frames[i] == -1)
+                continue;
+
+            TranslationEntry entry = pages.get(first + i);
+            entry.ppn = frames[i];
+            entry.valid = true;
+            entry.used = false;
+            entry.dirty = false;
+
+            VMKernel.coreMap.unpin(frames[i]);
+
+            prefetched[first + i] = true;
+            numPrefetches++;
+        }
+
+        VMKernel.numPrefetched += numKept;
+    }
+
+    private boolean isSwappedOut(int vpn) {
+        return vpn >= 0 && vpn < numPages && inSwap[vpn] && !pages.get(vpn).valid;
+    }
+
+    /**
+     * Read a page of a mapped file, together with as many of the non-resident
+     * pages after it as can be read in the same operation. Must be called with
+     * <tt>VMKernel.memoryLock</tt> held.
+     *
+     * @param mapping the mapping the page belongs to.
+     * @param vpn     the page being faulted in.
+     * @param ppn     the frame allocated for it.
+     */
+    private void readMapped(MappedFile mapping, int vpn, int ppn) {
+        // this evicts other pages to make room: mapped files are mostly read in
+        // order, so the pages read ahead are likely to be used before anything
+        // they displace; half of memory is left for other processes' pinned
+        // pages
+        int maxRun = Math.min(maxFileRun, VMKernel.coreMap.getNumFrames() / 2);
+
+        int count = 1;
+        while (count < maxRun && mapping.contains(vpn + count) && !mapping.getEntry(vpn + count).valid)
+            count++;
+
+        // allocate every frame before using the buffer, since an allocation can
+        // evict a dirty mapped page, which writes through the buffer
+        int[] frames = new int[count];
+        frames[0] = ppn;
+        for (int i = 1; i < count; i++)
+            frames[i] = VMKernel.coreMap.allocate(this, vpn + i);
+
+        byte[] buffer = getFileBuffer();
+        int offset = (vpn - mapping.firstVPN) * pageSize;
+        int amount = mapping.file.read(offset, buffer, 0, count * pageSize);
+        amount = Math.max(amount, 0);
+        Arrays.fill(buffer, amount, count * pageSize, (byte) 0);
+
+        byte[] memory = Machine.processor().getMemory();
+        for (int i = 0; i < count; i++)
+            System.arraycopy(buffer, i * pageSize, memory, frames[i] * pageSize, pageSize);
+
+        for (int i = 1; i < count; i++) {
+            TranslationEntry entry = mapping.getEntry(vpn + i);
+            entry.ppn = frames[i];
+            entry.valid = true;
+            entry.used = false;
+            entry.dirty = false;
+
+            VMKernel.coreMap.unpin(frames[i]);
+        }
+
+        VMKernel.numMappedIns += count;
+        VMKernel.numMappedReads++;
+    }
+
+    /**
+     * Write resident pages of a mapped file back to it in one operation. Nothing
+     * is written beyond the length the file had when it was mapped. Must be
+     * called with <tt>VMKernel.memoryLock</tt> held.
+     *
+     * @param mapping  the mapping the pages belong to.
+     * @param firstVPN the first page to write.
+     * @param frames   the frames holding the pages.
+     * @param count    the number of pages.
+     */
+    private void writeMapped(MappedFile mapping, int firstVPN, int[] frames, int count) {
+        int offset = (firstVPN - mapping.firstVPN) * pageSize;
+        int amount = Math.min(count * pageSize, mapping.length - offset);
+        if (amount <= 0)
+            return;
+
+        byte[] buffer = getFileBuffer();
+        byte[] memory = Machine.processor().getMemory();
+        for (int i = 0; i < count; i++)
+            System.arraycopy(memory, frames[i] * pageSize, buffer, i * pageSize, pageSize);
+
+        mapping.file.write(offset, buffer, 0, amount);
+        VMKernel.pageCache.invalidate(mapping.file.getName());
+
+        VMKernel.numMappedOuts += count;
+        VMKernel.numMappedWrites++;
+    }
+
+    /**
+     * Return the buffer used to move runs of mapped pages to and from their
+     * files, which is shared by all processes and protected by
+     * <tt>VMKernel.memoryLock</tt>.
+     */
+    private static byte[] getFileBuffer() {
+        if (fileBuffer == null)
+            fileBuffer = new byte[maxFileRun * pageSize];
+
+        return fileBuffer;
+    }
+
+    /**
+     * Evict a page from memory, writing it to the swap file if it has changed
+     * since it was last read from there or from the executable. Called by the
+     * core map, with <tt>VMKernel.memoryLock</tt> held, to free the page's
+     * frame.
+     *
+     * @param vpn the resident page to evict.
+     */
+    void pageOut(int vpn) {
+        TranslationEntry entry = getEntry(vpn);
+        Lib.assertTrue(entry.valid);
+
+        // this process's translations are only in the TLB while it is running
+        if (UserKernel.currentProcess() == this) {
+            int index = findTLBEntry(vpn);
+            if (index != -1) {
+                syncTLBEntry(index);
+                clearTLBEntry(index);
+            }
+        }
+
+        entry.valid = false;
+        if (vpn < numPages)
+            prefetched[vpn] = false;
+
+        if (!entry.dirty)
+            return;
+
+        entry.dirty = false;
+
+        // a page of a mapped file goes back to the file
+        MappedFile mapping = findMapping(vpn);
+        if (mapping != null) {
+            writeMapped(mapping, vpn, new int[] { entry.ppn }, 1);
+            return;
+        }
+
+        if (swapBase == -1)
+            swapBase = VMKernel.swapFile.allocate(numPages);
+
+        VMKernel.swapFile.write(swapBase + vpn, entry.ppn);
+        inSwap[vpn] = true;
+    }
+
+    /**
+     * Take away this process's translation for a shared page whose frame is
+     * being reused. Called by the core map, with <tt>VMKernel.memoryLock</tt>
+     * held. A cached page can always be loaded again from the executable, but a
+     * copy-on-write page is first saved to this process's swap slot, unless the
+     * slot already holds it.
+     *
+     * @param page the page.
+     */
+    void unmapShared(SharedPage page) {
+        int vpn = page.vpn;
+
+        if (UserKernel.currentProcess() == this)
+            invalidateTLBEntry(vpn);
+
+        pages.get(vpn).valid = false;
+
+        if (page.isCached() || !page.mustSave(this))
+            return;
+
+        if (swapBase == -1)
+            swapBase = VMKernel.swapFile.allocate(numPages);
+
+        VMKernel.swapFile.write(swapBase + vpn, page.ppn);
+        inSwap[vpn] = true;
+    }
+
+    /**
+     * Test whether this process's swap slot for a page holds a copy of it.
+     *
+     * @param vpn the page.
+     * @return <tt>true</tt> if the page has been written to swap.
+     */
+    boolean isInSwap(int vpn) {
+        return inSwap[vpn];
+    }
+
+    /**
+     * Remove any TLB entry for a page. This process must be running.
+     *
+     * @param vpn the page.
+     */
+    private void invalidateTLBEntry(int vpn) {
+        int index = findTLBEntry(vpn);
+        if (index != -1)
+            clearTLBEntry(index);
+    }
+
+    /**
+     * Copy the used and dirty bits of every TLB entry back to the page table,
+     * and clear the used bits in the TLB, so that the page table shows which
+     * pages have been touched since the last call. Called by the core map, with
+     * <tt>VMKernel.memoryLock</tt> held, while this process is running.
+     */
+    void collectTLBBits() {
+        Processor processor = Machine.processor();
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            if (getTLBPage(i) == -1)
+                continue;
+
+            syncTLBEntry(i);
+
+            TranslationEntry tlbEntry = processor.readTLBEntry(i);
+            if (tlbEntry.used) {
+                tlbEntry.used = false;
+                processor.writeTLBEntry(i, tlbEntry);
+            }
+        }
+    }
+
+    /**
+     * Return this process's page table entry for a page.
+     *
+     * @param vpn the virtual page number.
+     * @return the page table entry.
+     */
+    TranslationEntry getPageTableEntry(int vpn) {
+        return getEntry(vpn);
+    }
+
+    protected TranslationEntry getTranslation(int vpn) {
+        return getEntry(vpn);
+    }
+
+    /**
+     * Return the translation for a page, which is either one of the program's
+     * pages or a page of a mapped file.
+     *
+     * @param vpn the virtual page number.
+     * @return the page's entry, or <tt>null</tt> if nothing is mapped there.
+     */
+    private TranslationEntry getEntry(int vpn) {
+        return pages.get(vpn);
+    }
+
+    /**
+     * Return the mapped file containing a page.
+     *
+     * @param vpn the virtual page number.
+     * @return the mapping, or <tt>null</tt> if the page is not in a mapped file.
+     */
+    private MappedFile findMapping(int vpn) {
+        if (vpn < numPages)
+            return null;
+
+        for (MappedFile mapping : mappings) {
+            if (mapping.contains(vpn))
+                return mapping;
+        }
+
+        return null;
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back to the page table.
+     *
+     * @param index the TLB entry to copy.
+     */
+    protected void syncTLBEntry(int index) {
+        TranslationEntry tlbEntry = Machine.processor().readTLBEntry(index);
+        if (!tlbEntry.valid)
+            return;
+
+        TranslationEntry entry = getEntry(tlbEntry.vpn);
+        entry.used |= tlbEntry.used;
+
+        if (tlbEntry.used && tlbEntry.vpn < numPages)
+            lastUsed[tlbEntry.vpn] = virtualTime;
+        entry.dirty |= tlbEntry.dirty;
+    }
+
+    /** The COFF section each page belongs to, or <tt>null</tt>. */
+    private CoffSection[] pageSections;
+    /** The first of this process's swap slots, or -1 if it has none yet. */
+    private int swapBase = -1;
+    /** <tt>true</tt> for each page whose slot holds a copy of it. */
+    private boolean[] inSwap;
+    /** <tt>true</tt> for each page read in early and not yet used. */
+    private boolean[] prefetched;
+    /** For each page, the page that faulted after it last time, or -1. */
+    private int[] nextFault;
+    private int lastFault = -1, lastStride = 0;
+    /** <tt>true</tt> if the last two faults were the same distance apart. */
+    private boolean strideRepeated = false;
+
+    /** For each page, the unit of virtual time in which it was last used. */
+    private int[] lastUsed;
+    /** The number of times this process has been switched out. */
+    private int virtualTime = 0;
+
+    // paging statistics for this process, reported by unloadSections()
+    private int numFaults = 0, numPrefetches = 0, numPrefetchHits = 0;
+    private int peakResident = 0, peakWorkingSet = 0;
+    private long totalWorkingSet = 0;
+    /** The size of the working set when this process was last switched out. */
+    private int currentWorkingSet = 0;
+
+    /** The translation of every mapped page, of the program or of a file. */
+    private PageTable pages;
+
+    /** The files mapped by <tt>mmap()</tt>. */
+    private LinkedList<MappedFile> mappings = new LinkedList<MappedFile>();
+
+    /** The shared memory segments attached by <tt>shmat()</tt>. */
+    private LinkedList<Attachment> attachments = new LinkedList<Attachment>();
+
+    /** Staging buffer for mapped file I/O; see <tt>getFileBuffer()</tt>. */
+    private static byte[] fileBuffer = null;
+
+    /**
+     * A file mapped into memory by <tt>mmap()</tt>, and the translations of its
+     * pages.
+     */
+    private static class MappedFile {
+        MappedFile(int descriptorId, OpenFile file, int firstVPN, int length) {
+            this.descriptorId = descriptorId;
+            this.file = file;
+            this.firstVPN = firstVPN;
+            this.length = length;
+
+            pages = new TranslationEntry[(length + pageSize - 1) / pageSize];
+            for (int i = 0; i < pages.length; i++)
+                pages[i] = new TranslationEntry(firstVPN + i, -1, false, false, false, false);
+        }
+
+        boolean contains(int vpn) {
+            return vpn >= firstVPN && vpn < firstVPN + pages.length;
+        }
+
+        TranslationEntry getEntry(int vpn) {
+            return pages[vpn - firstVPN];
+        }
+
+        int descriptorId;
+        OpenFile file;
+        int firstVPN;
+        /** The length of the file when it was mapped. */
+        int length;
+        TranslationEntry[] pages;
+    }
+
+
+    /**
+     * A shared memory segment mapped into this process.
+     */
+    private static class Attachment {
+        Attachment(SharedMemory.Segment segment, int firstVPN) {
+            this.segment = segment;
+            this.firstVPN = firstVPN;
+        }
+
+        final SharedMemory.Segment segment;
+        final int firstVPN;
+    }
+
+    /** MIPS opcodes of the store instructions. */
+    private static final int opSB = 0x28, opSH = 0x29, opSWL = 0x2a, opSW = 0x2b, opSWR = 0x2e;
+
+    /** The most pages of a mapped file moved in one operation. */
+    private static final int maxFileRun = 8;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';